@@ -0,0 +1,4 @@
+#! /bin/zsh
+clear
+rm -f bbin/**/*.class
+javac -d bbin src/jlox/*.java src/bench/*.java && java -cp bbin bench.ScalingBenchmark $@
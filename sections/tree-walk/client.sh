@@ -0,0 +1,3 @@
+#! /bin/zsh
+# talk to a server started with `./run.sh --server /tmp/jlox.sock`
+java -Xshare:auto -XX:TieredStopAtLevel=1 -cp bin jlox.LoxClient ${JLOX_SOCKET:-/tmp/jlox.sock} $@
@@ -3,6 +3,7 @@ clear
 rm bin/jlox/*.class
 echo 'compiling'
 javac -d bin src/jlox/*.java \
+	&& cp -r src/META-INF bin/ \
 	&& echo 'running\n'\
   &&	java -cp bin jlox.Lox $@
 
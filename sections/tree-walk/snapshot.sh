@@ -0,0 +1,17 @@
+#! /bin/zsh
+# Builds a startup snapshot:
+#   bin/jlox.image  the global environment after running the prelude
+#   bin/jlox.jsa    AppCDS archive of the classes a run from that image loads
+# AppCDS only archives classes loaded from jars, so the classes are also
+# packed into bin/jlox.jar.
+# usage: ./snapshot.sh [prelude] [training script]
+prelude=${1:-test-lox/prelude.lox}
+training=${2:-test-lox/fun.lox}
+
+rm -f bin/jlox/*.class bin/jlox.jar bin/jlox.jsa bin/jlox.image
+javac -encoding UTF-8 -d bin src/jlox/*.java \
+	&& cp -r src/META-INF bin/ \
+	&& jar cf bin/jlox.jar -C bin jlox -C bin META-INF \
+	&& java -cp bin/jlox.jar jlox.Lox --prelude $prelude --snapshot bin/jlox.image \
+	&& java -XX:ArchiveClassesAtExit=bin/jlox.jsa -cp bin/jlox.jar jlox.Lox --image bin/jlox.image $training > /dev/null \
+	&& echo "run with:\n  java -XX:SharedArchiveFile=bin/jlox.jsa -cp bin/jlox.jar jlox.Lox --image bin/jlox.image <script>"
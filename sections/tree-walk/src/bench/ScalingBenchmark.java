@@ -0,0 +1,78 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jlox.CompiledScript;
+import jlox.LoxContext;
+import jlox.LoxRuntime;
+
+// Compiles one script once and runs it from 1..N threads, each run with its own
+// LoxContext. Prints runs per second and the ratio to a single thread. N
+// defaults to the number of cores, so on one core it only measures a single
+// thread.
+public class ScalingBenchmark {
+    private static final String SOURCE = String.join("\n",
+            "fun fib(n) {",
+            "  if (n < 2) return n;",
+            "  return fib(n - 1) + fib(n - 2);",
+            "}",
+            "var total = 0;",
+            "for (var i = 0; i < 5; i = i + 1) {",
+            "  total = total + fib(15);",
+            "}",
+            "print total;");
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        int runsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        LoxRuntime runtime = new LoxRuntime(discard, System.err);
+        CompiledScript script = runtime.compile(SOURCE);
+
+        // warm up the JIT before measuring
+        runAll(script, discard, 1, runsPerThread);
+
+        System.out.printf("%8s %12s %9s%n", "threads", "runs/sec", "speedup");
+        double baseline = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long start = System.nanoTime();
+            runAll(script, discard, threads, runsPerThread);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            double throughput = threads * runsPerThread / seconds;
+            if (threads == 1)
+                baseline = throughput;
+            System.out.printf("%8d %12.1f %8.2fx%n", threads, throughput, throughput / baseline);
+        }
+    }
+
+    private static void runAll(CompiledScript script, PrintStream out, int threads, int runs) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < runs; i++) {
+                        LoxContext context = new LoxContext(out, System.err);
+                        if (!script.run(context))
+                            throw new IllegalStateException("benchmark script failed");
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
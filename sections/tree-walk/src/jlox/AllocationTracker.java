@@ -0,0 +1,142 @@
+package jlox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import jdk.jfr.FlightRecorder;
+
+// Optional per-site accounting of the objects a Lox program allocates. Sizes are
+// rough 64-bit compressed-oops estimates, good enough to rank sites against
+// each other but not to match a heap dump byte for byte.
+//
+// The totals are reported when the program ends, and while it runs they can be
+// read from a JFR recording: between start() and stop(), each period emits a
+// LoxAllocationSiteEvent per site and a LoxLiveInstancesEvent per class. JFR
+// reads them from its own thread, hence the locking.
+class AllocationTracker {
+    // object header + LoxInstance fields + an empty HashMap for the fields
+    static final long INSTANCE_BYTES = 16 + 48;
+    // object header + LoxFunction fields
+    static final long CLOSURE_BYTES = 24;
+    // String object + byte[] header, payload is added per character
+    static final long STRING_BYTES = 24 + 16;
+    // object header + Rope fields, the characters aren't copied until needed
+    static final long ROPE_BYTES = 32;
+
+    static class Site {
+        final String kind;
+        final int line;
+        long count = 0;
+        long bytes = 0;
+
+        Site(String kind, int line) {
+            this.kind = kind;
+            this.line = line;
+        }
+    }
+
+    private final Map<String, Site> sites = new LinkedHashMap<>();
+    // weak so that tracking never keeps an instance alive
+    private final Map<LoxInstance, LoxClass> live = new WeakHashMap<>();
+    private final Runnable emitSites = this::emitSites;
+    private final Runnable emitLive = this::emitLive;
+
+    // emits the events each period while a recording asks for them, if the JFR
+    // events are in use
+    void start() {
+        if (LoxEvents.ENABLED) {
+            FlightRecorder.addPeriodicEvent(LoxAllocationSiteEvent.class, emitSites);
+            FlightRecorder.addPeriodicEvent(LoxLiveInstancesEvent.class, emitLive);
+        }
+    }
+
+    void stop() {
+        if (LoxEvents.ENABLED) {
+            FlightRecorder.removePeriodicEvent(emitSites);
+            FlightRecorder.removePeriodicEvent(emitLive);
+        }
+    }
+
+    private void emitSites() {
+        for (Site site : sites()) {
+            LoxAllocationSiteEvent event = new LoxAllocationSiteEvent();
+            event.site = site.kind;
+            event.line = site.line;
+            event.count = site.count;
+            event.bytes = site.bytes;
+            event.commit();
+        }
+    }
+
+    private void emitLive() {
+        for (Map.Entry<String, Integer> entry : liveHistogram().entrySet()) {
+            LoxLiveInstancesEvent event = new LoxLiveInstancesEvent();
+            event.className = entry.getKey();
+            event.count = entry.getValue();
+            event.commit();
+        }
+    }
+
+    synchronized void instance(Token site, LoxClass klass, LoxInstance instance) {
+        record("instance " + klass.name, site.line, INSTANCE_BYTES);
+        live.put(instance, klass);
+    }
+
+    void closure(Token site) {
+        record("closure " + site.lexeme, site.line, CLOSURE_BYTES);
+    }
+
+    void string(Token site, CharSequence value) {
+        if (value instanceof Rope)
+            record("string", site.line, ROPE_BYTES);
+        else
+            record("string", site.line, STRING_BYTES + value.length());
+    }
+
+    private synchronized void record(String kind, int line, long bytes) {
+        Site site = sites.computeIfAbsent(kind + "@" + line, k -> new Site(kind, line));
+        site.count++;
+        site.bytes += bytes;
+    }
+
+    // copies of the sites ordered by the bytes they allocated, largest first
+    synchronized List<Site> sites() {
+        List<Site> sorted = new ArrayList<>();
+        for (Site site : sites.values()) {
+            Site copy = new Site(site.kind, site.line);
+            copy.count = site.count;
+            copy.bytes = site.bytes;
+            sorted.add(copy);
+        }
+        sorted.sort((a, b) -> Long.compare(b.bytes, a.bytes));
+        return sorted;
+    }
+
+    // number of instances per class that are still reachable (as of the last GC)
+    synchronized Map<String, Integer> liveHistogram() {
+        Map<String, Integer> histogram = new TreeMap<>();
+        for (LoxClass klass : new ArrayList<>(live.values())) {
+            histogram.merge(klass.name, 1, Integer::sum);
+        }
+        return Collections.unmodifiableMap(histogram);
+    }
+
+    void report(PrintStream out) {
+        out.println("-- allocation sites --");
+        out.printf("%10s %12s  %s%n", "count", "bytes", "site");
+        for (Site site : sites()) {
+            out.printf("%10d %12d  [line %d] %s%n", site.count, site.bytes, site.line, site.kind);
+        }
+
+        out.println("-- live instances --");
+        for (Map.Entry<String, Integer> entry : liveHistogram().entrySet()) {
+            out.printf("%10d  %s%n", entry.getValue(), entry.getKey());
+        }
+    }
+}
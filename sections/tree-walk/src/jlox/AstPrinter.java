@@ -6,8 +6,13 @@ import java.io.PrintWriter;
 import java.util.List;
 
 class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
+  private final ErrorReporter reporter;
   private int level = 0;
 
+  AstPrinter(ErrorReporter reporter) {
+    this.reporter = reporter;
+  }
+
   // accepts a list of statment, otherwise called a program ;)
   public void printTree(List<Stmt> statements, boolean print, boolean save) {
     StringBuilder stringBuilder = new StringBuilder();
@@ -16,7 +21,7 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
         stringBuilder.append(print(statement));
       }
     } catch (RuntimeError error) {
-      Lox.runtimeError(error);
+      reporter.runtimeError(error);
     }
 
     String out = stringBuilder.toString();
@@ -95,6 +100,11 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     return builder.toString();
   }
 
+  @Override
+  public String visitConstStmt(Stmt.Const stmt) {
+    return parenthesize2("const", stmt.name, "=", stmt.initializer);
+  }
+
   @Override
   public String visitExpressionStmt(Stmt.Expression stmt) {
     return parenthesize(";", stmt.expression);
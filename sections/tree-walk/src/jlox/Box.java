@@ -0,0 +1,13 @@
+package jlox;
+
+// A captured variable that is assigned after it's captured. The environment
+// it's declared in and the closures of every function that captures it hold
+// the same Box in place of the value, so an assignment through any of them is
+// seen by all (see Resolver).
+final class Box {
+    Object value;
+
+    Box(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,351 @@
+package jlox;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Finds the pure expressions whose value NodeCompiler can compute once and
+// share across a region of code:
+//   - a loop, where an expression nothing in the loop can change is worked out
+//     on its first use and reused by every later iteration (loop-invariant code
+//     motion)
+//   - a single statement, where an expression written twice is worked out once
+//     (common subexpression elimination)
+//
+// An expression is pure when it's made of literals, variables, this, gets and
+// operators, and invariant in the region when:
+//   - none of its variables is assigned or declared in the region, and none is
+//     a local that a closure assigns, since the closure might run in there
+//   - none of the fields it gets is set in the region
+//   - it reads no global and no field, if the region makes a call, since a
+//     call can change those
+// The shared value is computed where the expression is first evaluated, so an
+// operation that fails still fails at the same point, with the same error.
+//
+// Only the node tier uses this. The syntax tree isn't rewritten, so the
+// Interpreter still evaluates every expression where it's written. A shared
+// value there would have to live in an environment, a HashMap, and storing and
+// loading it costs about what the small expressions this finds cost to
+// evaluate. Besides, hot code doesn't stay in the Interpreter long: a function
+// is compiled after NodeCompiler.CALL_THRESHOLD calls and a loop after
+// LOOP_THRESHOLD iterations, and code run less than that is too cold for it
+// to matter.
+class CommonExpressions implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final String IMPURE = new String("impure");
+
+    private final Map<Expr, Integer> locals;
+    private final Set<String> captured; // locals some closure assigns
+    // what the region changes
+    private final Set<String> names = new HashSet<>();
+    private final Set<String> fields = new HashSet<>();
+    private boolean calls = false;
+
+    private final Map<Expr, String> keys = new IdentityHashMap<>();
+    // how often each shareable expression appears, by key
+    private final Map<String, Integer> counts = new HashMap<>();
+    private boolean counting = false;
+    private int functions = 0; // functions entered, whose bodies don't run in the region
+
+    private CommonExpressions(Map<Expr, Integer> locals, Set<String> captured) {
+        this.locals = locals;
+        this.captured = captured;
+    }
+
+    // the names of the locals that are shared through a Box
+    static Set<String> captured(Collection<List<Resolver.Capture>> captures) {
+        Set<String> names = new HashSet<>();
+        for (List<Resolver.Capture> list : captures) {
+            for (Resolver.Capture capture : list) {
+                if (capture.mutable)
+                    names.add(capture.name);
+            }
+        }
+        return names;
+    }
+
+    // the analysis of a loop, or null if it has nothing to hoist
+    static CommonExpressions loop(Stmt.While loop, Map<Expr, Integer> locals, Set<String> captured) {
+        CommonExpressions analysis = new CommonExpressions(locals, captured);
+        analysis.walk(loop);
+        analysis.counting = true;
+        analysis.walk(loop);
+        return analysis.counts.isEmpty() ? null : analysis;
+    }
+
+    // the analysis of a statement's expression, or null if nothing in it is
+    // written twice. Only call-free statements qualify, so a statement never
+    // runs again while it's being evaluated.
+    static CommonExpressions statement(Expr expr, Map<Expr, Integer> locals, Set<String> captured) {
+        CommonExpressions analysis = new CommonExpressions(locals, captured);
+        analysis.walk(expr);
+        if (analysis.calls)
+            return null;
+        analysis.counting = true;
+        analysis.walk(expr);
+        return analysis.repeats() ? analysis : null;
+    }
+
+    private boolean repeats() {
+        for (int count : counts.values()) {
+            if (count > 1)
+                return true;
+        }
+        return false;
+    }
+
+    // how often the expression appears in the region, or 0 if it can't be
+    // shared there
+    int count(Expr expr) {
+        if (!shareable(expr))
+            return 0;
+        Integer count = counts.get(key(expr));
+        return count == null ? 0 : count;
+    }
+
+    // the key that equal expressions share, or IMPURE. Every use of a variable
+    // in the region means the same variable, since the region doesn't declare
+    // it, so a name is enough.
+    String key(Expr expr) {
+        String key = keys.get(expr);
+        if (key == null) {
+            key = computeKey(expr);
+            keys.put(expr, key);
+        }
+        return key;
+    }
+
+    private String computeKey(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            if (value instanceof String)
+                return "\"" + ((String) value).length() + ":" + value;
+            if (Numbers.isNumber(value))
+                return "#" + value; // so Infinity can't be taken for a variable
+            return value == null ? "nil" : value.toString();
+        }
+        if (expr instanceof Expr.Variable) {
+            Token name = ((Expr.Variable) expr).name;
+            if (names.contains(name.lexeme))
+                return IMPURE;
+            boolean local = locals.get(expr) != null;
+            if (local ? captured.contains(name.lexeme) : calls)
+                return IMPURE;
+            return name.lexeme;
+        }
+        if (expr instanceof Expr.This)
+            return "this";
+        if (expr instanceof Expr.Grouping)
+            return key(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return combine(unary.operator, key(unary.right));
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return combine(binary.operator, key(binary.left), key(binary.right));
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical) expr;
+            return combine(logical.operator, key(logical.left), key(logical.right));
+        }
+        if (expr instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr;
+            if (calls || fields.contains(get.name.lexeme))
+                return IMPURE;
+            return combine(get.name, key(get.object));
+        }
+        return IMPURE;
+    }
+
+    private static String combine(Token operator, String... operands) {
+        StringBuilder key = new StringBuilder("(").append(operator.type);
+        if (operator.type == TokenType.IDENTIFIER)
+            key.append(' ').append(operator.lexeme);
+        for (String operand : operands) {
+            if (operand == IMPURE)
+                return IMPURE;
+            key.append(' ').append(operand);
+        }
+        return key.append(')').toString();
+    }
+
+    // pure and invariant, and worth sharing: reading a variable or a literal
+    // costs less than reading a shared value
+    boolean shareable(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        if (!(expr instanceof Expr.Binary || expr instanceof Expr.Unary || expr instanceof Expr.Logical
+                || expr instanceof Expr.Get))
+            return false;
+        return key(expr) != IMPURE;
+    }
+
+    private void walk(List<? extends Stmt> statements) {
+        for (Stmt statement : statements) {
+            walk(statement);
+        }
+    }
+
+    private void walk(Stmt stmt) {
+        if (stmt != null)
+            stmt.accept(this);
+    }
+
+    private void walk(Expr expr) {
+        if (expr == null)
+            return;
+        if (counting && functions == 0 && !(expr instanceof Expr.Grouping) && shareable(expr))
+            counts.merge(key(expr), 1, Integer::sum);
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        names.add(expr.name.lexeme);
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (functions == 0)
+            calls = true;
+        walk(expr.callee);
+        for (Expr argument : expr.arguments) {
+            walk(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        walk(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        walk(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        fields.add(expr.name.lexeme);
+        walk(expr.object);
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        walk(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        names.add(stmt.name.lexeme);
+        walk(stmt.methods);
+        return null;
+    }
+
+    @Override
+    public Void visitConstStmt(Stmt.Const stmt) {
+        names.add(stmt.name.lexeme);
+        walk(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        names.add(stmt.name.lexeme);
+        for (Token param : stmt.params) {
+            names.add(param.lexeme);
+        }
+        functions++;
+        walk(stmt.body);
+        functions--;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        walk(stmt.condition);
+        walk(stmt.thenBranch);
+        walk(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        walk(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        names.add(stmt.name.lexeme);
+        walk(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        walk(stmt.condition);
+        walk(stmt.body);
+        return null;
+    }
+}
@@ -0,0 +1,59 @@
+package jlox;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A scanned, parsed, resolved and type-inferred Lox program, ready to run against any
+ * {@link LoxContext}. Neither the statements nor the resolution are modified
+ * after compilation, so one script can be run by many threads at once, each
+ * with its own context.
+ */
+public class CompiledScript {
+    final List<Stmt> statements;
+    final Map<Expr, Integer> locals;
+    final Map<Stmt.Function, List<Resolver.Capture>> captures;
+    final Map<Expr, TypeInference.Type> types;
+    final Set<Expr.Call> tailCalls;
+    private final List<String> errors;
+
+    CompiledScript(List<Stmt> statements, Map<Expr, Integer> locals,
+            Map<Stmt.Function, List<Resolver.Capture>> captures, Map<Expr, TypeInference.Type> types,
+            Set<Expr.Call> tailCalls, List<String> errors) {
+        this.statements = Collections.unmodifiableList(statements);
+        this.locals = Collections.unmodifiableMap(locals);
+        this.captures = Collections.unmodifiableMap(captures);
+        this.types = Collections.unmodifiableMap(types);
+        this.tailCalls = Collections.unmodifiableSet(tailCalls);
+        this.errors = List.copyOf(errors);
+    }
+
+    /** True if scanning, parsing or resolving reported an error. */
+    public boolean hadError() {
+        return !errors.isEmpty();
+    }
+
+    /** The compile errors, in the order they were reported. */
+    public List<String> errors() {
+        return errors;
+    }
+
+    /**
+     * Execute the program with the globals, output streams and error state of
+     * the given context. It runs on a thread with stack enough for the
+     * context's maximum call depth, which is this thread if it has it, so it
+     * can be called from any thread.
+     *
+     * @return false if the program stopped on a runtime error
+     */
+    public boolean run(LoxContext context) {
+        if (hadError())
+            throw new IllegalStateException("Can't run a script with compile errors.");
+
+        Interpreter interpreter = context.interpreter;
+        return LoxThread.run(interpreter.maxDepth,
+                () -> interpreter.interpret(statements, locals, captures, types, tailCalls));
+    }
+}
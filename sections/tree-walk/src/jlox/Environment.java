@@ -1,24 +1,139 @@
 package jlox;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 public class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // A global variable. The global environment keeps one per name it has been
+    // asked about, so a site that looked a global up once can hold on to it
+    // instead of hashing the name every time. values stays the real storage,
+    // since an embedder may own it, and cells follow every write to it.
+    static final class Global {
+        final String name;
+        Object value;
+        boolean defined;
+        boolean constant;
+
+        Global(String name) {
+            this.name = name;
+        }
+    }
+
+    Environment enclosing; // only changed by reset(), on a pooled function frame
+    final Map<String, Object> values;
+    private Map<String, Global> cells = null; // globals only
+    // globals only: the consts declared so far. The Resolver keeps a const from
+    // being assigned or declared again within one program, and this keeps it
+    // from happening in later ones run against the same globals, such as the
+    // script after a prelude or the next line typed into the REPL.
+    private Set<String> consts = null;
+    // globals only: the names a program can use without defining them, which a
+    // definition of the same name hides (see Interpreter.NATIVES)
+    Map<String, Object> natives = Map.of();
 
     public Environment() {
         this.enclosing = null;
+        this.values = new HashMap<>();
+    }
+
+    // a global environment stored in a map owned by the embedder, such as the
+    // Bindings of a script engine, with the names of its consts kept alongside
+    Environment(Map<String, Object> values, Set<String> consts) {
+        this.enclosing = null;
+        this.values = values;
+        this.consts = consts;
     }
 
     public Environment(Environment enclosing) {
         this.enclosing = enclosing;
+        this.values = new HashMap<>();
+    }
+
+    // empties a function frame for its next call (see Interpreter.frame)
+    void reset(Environment closure) {
+        enclosing = closure;
+        values.clear();
     }
 
     void define(String name, Object value) {
         // TODO static type. Variable object with type attr instead of object
         values.put(name, value); // var a = 0; var a = 1; ... second will overwrite the var. Change this for
                                  // redefining assignment
+        if (cells != null) {
+            Global cell = cells.get(name);
+            if (cell != null) {
+                cell.value = value;
+                cell.defined = true;
+            }
+        }
+    }
+
+    // a var, fun or class declaration, which can't replace a global const
+    void define(Token name, Object value) {
+        if (isConst(name.lexeme))
+            throw new RuntimeError(name, "Already a constant with this name.");
+        define(name.lexeme, value);
+    }
+
+    void defineConst(Token name, Object value) {
+        define(name, value);
+        if (enclosing == null)
+            constant(name.lexeme);
+    }
+
+    // marks a global as a const
+    void constant(String name) {
+        if (consts == null)
+            consts = new HashSet<>();
+        consts.add(name);
+        if (cells != null && cells.containsKey(name))
+            cells.get(name).constant = true;
+    }
+
+    boolean isConst(String name) {
+        return consts != null && consts.contains(name);
+    }
+
+    Set<String> consts() {
+        return consts == null ? Set.of() : consts;
+    }
+
+    // the cell of a global, which stays undefined until the global is defined
+    Global cell(String name) {
+        if (cells == null)
+            cells = new HashMap<>();
+
+        Global cell = cells.get(name);
+        if (cell == null) {
+            cell = new Global(name);
+            cell.constant = isConst(name);
+            if (values.containsKey(name)) {
+                cell.value = values.get(name);
+                cell.defined = true;
+            } else if (natives.containsKey(name)) {
+                cell.value = natives.get(name);
+                cell.defined = true;
+            }
+            cells.put(name, cell);
+        }
+        return cell;
+    }
+
+    Object get(Global cell, Token name) {
+        if (!cell.defined)
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        return cell.value;
+    }
+
+    void assign(Global cell, Token name, Object value) {
+        if (!cell.defined)
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        if (cell.constant)
+            throw new RuntimeError(name, "Can't assign to a constant.");
+        cell.value = value;
+        values.put(cell.name, value);
     }
 
     Object get(Token name) {
@@ -27,12 +142,18 @@ public class Environment {
 
         if (enclosing != null)
             return enclosing.get(name);
+        if (natives.containsKey(name.lexeme))
+            return natives.get(name.lexeme);
 
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
+    // locals may hold a Box, when a closure captured them (see Resolver)
     Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+        Object value = ancestor(distance).values.get(name);
+        if (value instanceof Box)
+            return ((Box) value).value;
+        return value;
     }
 
     Environment ancestor(int distance) {
@@ -46,7 +167,11 @@ public class Environment {
 
     void assign(Token name, Object value) {
         if (values.containsKey(name.lexeme)) {
+            if (isConst(name.lexeme))
+                throw new RuntimeError(name, "Can't assign to a constant.");
             values.put(name.lexeme, value);
+            if (cells != null && cells.containsKey(name.lexeme))
+                cells.get(name.lexeme).value = value;
             return;
         }
 
@@ -54,12 +179,21 @@ public class Environment {
             enclosing.assign(name, value);
             return;
         }
+        if (natives.containsKey(name.lexeme)) {
+            define(name.lexeme, value);
+            return;
+        }
 
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
     void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+        Map<String, Object> scope = ancestor(distance).values;
+        Object current = scope.get(name.lexeme);
+        if (current instanceof Box)
+            ((Box) current).value = value;
+        else
+            scope.put(name.lexeme, value);
     }
 
     @Override
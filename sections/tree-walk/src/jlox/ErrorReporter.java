@@ -0,0 +1,58 @@
+package jlox;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+// Error state for one compilation or one execution context. Nothing here is
+// shared, so independent scripts can report errors from different threads.
+class ErrorReporter {
+    private final PrintWriter err;
+    // compile errors, as printed
+    final List<String> errors = new ArrayList<>();
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    ErrorReporter(PrintWriter err) {
+        this.err = err;
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+
+    // longest Lox stack trace printed in full; deeper ones lose their middle
+    private static final int TRACE_LIMIT = 20;
+
+    void runtimeError(RuntimeError error) {
+        // err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+        err.println("[line " + error.token.line + "] -->  " + error.getMessage());
+
+        List<String> trace = error.trace();
+        for (int i = 0; i < trace.size(); i++) {
+            if (trace.size() > TRACE_LIMIT && i == TRACE_LIMIT / 2) {
+                int skipped = trace.size() - TRACE_LIMIT;
+                err.println("    ... " + skipped + " more calls");
+                i += skipped - 1;
+                continue;
+            }
+            err.println("    " + trace.get(i));
+        }
+        hadRuntimeError = true;
+    }
+
+    private void report(int line, String where, String message) {
+        String error = "[line " + line + "] Error" + where + ": " + message;
+        err.println(error);
+        errors.add(error);
+        hadError = true;
+    }
+}
@@ -0,0 +1,244 @@
+package jlox;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Decides whether the instance in a local like `var p = Point();` can live as
+// one variable per field instead (scalar replacement, see NodeCompiler). That
+// holds when, in the statements after the declaration:
+//   - p is only ever used as p.field or p.field = value, so the instance never
+//     escapes: it isn't passed, returned, stored, printed or compared, and no
+//     function declared there mentions p
+//   - p is never assigned
+//   - every p.field read comes after p.field has been assigned on every path,
+//     so a read can't fall through to a method of the class
+class EscapeAnalysis implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final String name;
+    private final Map<Expr, Integer> locals;
+    // references to p that are the object of a get or set
+    private final Set<Expr> references = Collections.newSetFromMap(new IdentityHashMap<>());
+    // fields of p assigned on every path to the current point
+    private Set<String> assigned = new HashSet<>();
+    private boolean escapes = false;
+    private int scopes = 0; // blocks entered since p's scope
+    private int functions = 0; // functions entered, where any mention of p counts as escaping
+
+    private EscapeAnalysis(String name, Map<Expr, Integer> locals) {
+        this.name = name;
+        this.locals = locals;
+    }
+
+    // the references to be replaced, or null if the instance escapes
+    static Set<Expr> analyze(Token variable, List<Stmt> rest, Map<Expr, Integer> locals) {
+        EscapeAnalysis analysis = new EscapeAnalysis(variable.lexeme, locals);
+        analysis.walk(rest);
+        if (analysis.escapes || analysis.references.isEmpty())
+            return null;
+        return analysis.references;
+    }
+
+    private void walk(List<? extends Stmt> statements) {
+        for (Stmt statement : statements) {
+            walk(statement);
+        }
+    }
+
+    private void walk(Stmt stmt) {
+        if (stmt != null && !escapes)
+            stmt.accept(this);
+    }
+
+    private void walk(Expr expr) {
+        if (expr != null && !escapes)
+            expr.accept(this);
+    }
+
+    // whether the expression is p itself, as opposed to another variable that
+    // happens to have the same name
+    private boolean isVariable(Expr expr) {
+        if (!(expr instanceof Expr.Variable) || !((Expr.Variable) expr).name.lexeme.equals(name))
+            return false;
+        if (functions > 0)
+            return true;
+
+        Integer depth = locals.get(expr);
+        return depth != null && depth == scopes;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (expr.name.lexeme.equals(name)) {
+            Integer depth = locals.get(expr);
+            if (functions > 0 || (depth != null && depth == scopes))
+                escapes = true;
+        }
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        walk(expr.callee);
+        for (Expr argument : expr.arguments) {
+            walk(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        if (functions == 0 && isVariable(expr.object)) {
+            if (!assigned.contains(expr.name.lexeme))
+                escapes = true;
+            references.add(expr.object);
+            return null;
+        }
+        walk(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        walk(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        walk(expr.left);
+        // the right side may not run
+        Set<String> before = new HashSet<>(assigned);
+        walk(expr.right);
+        assigned = before;
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        if (functions == 0 && isVariable(expr.object)) {
+            walk(expr.value);
+            assigned.add(expr.name.lexeme);
+            references.add(expr.object);
+            return null;
+        }
+        walk(expr.object);
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (isVariable(expr))
+            escapes = true;
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes++;
+        walk(stmt.statements);
+        scopes--;
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        functions++;
+        walk(stmt.methods);
+        functions--;
+        return null;
+    }
+
+    @Override
+    public Void visitConstStmt(Stmt.Const stmt) {
+        walk(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        functions++;
+        walk(stmt.body);
+        functions--;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        walk(stmt.condition);
+
+        Set<String> before = assigned;
+        assigned = new HashSet<>(before);
+        walk(stmt.thenBranch);
+        Set<String> afterThen = assigned;
+
+        assigned = new HashSet<>(before);
+        if (stmt.elseBranch != null) {
+            walk(stmt.elseBranch);
+            afterThen.retainAll(assigned);
+            assigned = afterThen;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        walk(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        walk(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        walk(stmt.condition);
+        // the body may not run
+        Set<String> before = new HashSet<>(assigned);
+        walk(stmt.body);
+        assigned = before;
+        return null;
+    }
+}
@@ -0,0 +1,249 @@
+package jlox;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Decides whether a while loop is a counted loop that NodeCompiler can run
+// with its variable in a long or a double (see Node.CountedLoop). That's the shape a for
+// loop is parsed into:
+//
+//   while (i < bound) { body; i = i + k; }
+//
+// with any of <, <=, > or >=, with i += k, i - k or i -= k for a number k, and
+// where:
+//   - i is a local that no closure shares, so nothing outside the loop can
+//     read or write it while the loop runs
+//   - the body and the bound never assign i or declare a variable of the same
+//     name, so every i they mention is this one
+//   - the body declares no functions or classes, since a closure would copy i
+//     from the environment, which isn't kept up to date
+class InductionVariable implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final String name;
+    private boolean disqualified = false;
+
+    private InductionVariable(String name) {
+        this.name = name;
+    }
+
+    // the loop's variable, or null if it isn't a counted loop
+    static Expr.Variable find(Stmt.While loop, Map<Expr, Integer> locals, Set<String> captured) {
+        if (!(loop.condition instanceof Expr.Binary))
+            return null;
+        Expr.Binary condition = (Expr.Binary) loop.condition;
+        switch (condition.operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                break;
+            default:
+                return null;
+        }
+        if (!(condition.left instanceof Expr.Variable) || locals.get(condition.left) == null)
+            return null;
+        Expr.Variable variable = (Expr.Variable) condition.left;
+        String name = variable.name.lexeme;
+        if (captured.contains(name))
+            return null;
+
+        if (!(loop.body instanceof Stmt.Block) || ((Stmt.Block) loop.body).statements.size() != 2)
+            return null;
+        List<Stmt> statements = ((Stmt.Block) loop.body).statements;
+        if (!(statements.get(1) instanceof Stmt.Expression)
+                || !(((Stmt.Expression) statements.get(1)).expression instanceof Expr.Assign))
+            return null;
+        Expr.Assign increment = (Expr.Assign) ((Stmt.Expression) statements.get(1)).expression;
+        // the increment is one block further in than the condition
+        Integer depth = locals.get(increment);
+        if (!increment.name.lexeme.equals(name) || depth == null || depth != locals.get(condition.left) + 1
+                || step(increment) == null || !depth.equals(locals.get(((Expr.Binary) increment.value).left)))
+            return null;
+
+        InductionVariable analysis = new InductionVariable(name);
+        analysis.walk(condition.right);
+        analysis.walk(statements.get(0));
+        return analysis.disqualified ? null : variable;
+    }
+
+    // what `i = i + k` and the like add to i, or null if the assignment isn't
+    // one of those
+    static Object step(Expr.Assign increment) {
+        if (!(increment.value instanceof Expr.Binary))
+            return null;
+        Expr.Binary binary = (Expr.Binary) increment.value;
+        if (!(binary.left instanceof Expr.Variable)
+                || !((Expr.Variable) binary.left).name.lexeme.equals(increment.name.lexeme)
+                || !(binary.right instanceof Expr.Literal) || !Numbers.isNumber(((Expr.Literal) binary.right).value))
+            return null;
+
+        Object k = ((Expr.Literal) binary.right).value;
+        switch (binary.operator.type) {
+            case PLUS:
+            case PLUSEQUALS:
+                return k;
+            case MINUS:
+            case MINUSEQUALS:
+                return Numbers.negate(k);
+            default:
+                return null;
+        }
+    }
+
+    private void walk(List<? extends Stmt> statements) {
+        for (Stmt statement : statements) {
+            walk(statement);
+        }
+    }
+
+    private void walk(Stmt stmt) {
+        if (stmt != null && !disqualified)
+            stmt.accept(this);
+    }
+
+    private void walk(Expr expr) {
+        if (expr != null && !disqualified)
+            expr.accept(this);
+    }
+
+    // an assignment or declaration of name
+    private void binds(Token name) {
+        if (name.lexeme.equals(this.name))
+            disqualified = true;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        binds(expr.name);
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        walk(expr.callee);
+        for (Expr argument : expr.arguments) {
+            walk(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        walk(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        walk(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        walk(expr.object);
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        walk(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        disqualified = true;
+        return null;
+    }
+
+    @Override
+    public Void visitConstStmt(Stmt.Const stmt) {
+        binds(stmt.name);
+        walk(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        disqualified = true;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        walk(stmt.condition);
+        walk(stmt.thenBranch);
+        walk(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        walk(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        binds(stmt.name);
+        walk(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        walk(stmt.condition);
+        walk(stmt.body);
+        return null;
+    }
+}
@@ -0,0 +1,181 @@
+package jlox;
+
+import java.util.List;
+
+// Decides whether a function is small enough to be inlined at the call sites
+// of compiled code (see NodeCompiler and Node.Inline). That holds when its body
+// is at most NodeCompiler.INLINE_SIZE syntax tree nodes and it:
+//   - makes no calls, so an inlined body never runs again before it's done and
+//     never needs a tail call or a deeper Lox stack trace than its own
+//   - declares no functions or classes, which would capture its frame
+//   - isn't an initializer, which returns this whatever its body says
+class Inliner implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final int limit;
+    private int size = 0;
+
+    private Inliner(int limit) {
+        this.limit = limit;
+    }
+
+    static boolean inlinable(LoxFunction function, int limit) {
+        if (function.isInitializer)
+            return false;
+        Inliner inliner = new Inliner(limit);
+        inliner.walk(function.declaration.body);
+        return inliner.size <= limit;
+    }
+
+    private void walk(List<? extends Stmt> statements) {
+        for (Stmt statement : statements) {
+            walk(statement);
+        }
+    }
+
+    private void walk(Stmt stmt) {
+        if (stmt != null && size <= limit) {
+            size++;
+            stmt.accept(this);
+        }
+    }
+
+    private void walk(Expr expr) {
+        if (expr != null && size <= limit) {
+            size++;
+            expr.accept(this);
+        }
+    }
+
+    // anything that rules the function out
+    private void reject() {
+        size = limit + 1;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        reject();
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        walk(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        walk(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        walk(expr.object);
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        walk(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        reject();
+        return null;
+    }
+
+    @Override
+    public Void visitConstStmt(Stmt.Const stmt) {
+        walk(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        reject();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        walk(stmt.condition);
+        walk(stmt.thenBranch);
+        walk(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        walk(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        walk(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        walk(stmt.condition);
+        walk(stmt.body);
+        return null;
+    }
+}
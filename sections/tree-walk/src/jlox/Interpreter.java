@@ -1,9 +1,12 @@
 package jlox;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import jlox.Expr.Assign;
 import jlox.Expr.Binary;
@@ -24,37 +27,146 @@ import jlox.Stmt.While;
 // interpret statements to runnable java
 // Every new syntax tree node gets a new visit method.
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    public Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
-
-    public Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() {
-                return 0;
-            }
+    // -Djlox.maxDepth or --max-depth
+    static final int MAX_DEPTH = Integer.getInteger("jlox.maxDepth", 10000);
+    // generous for one level of Lox call, which is a dozen or so Java frames
+    // plus however deeply the expressions in between nest
+    private static final long STACK_BYTES_PER_CALL = 4 * 1024;
+
+    // the native functions, which every interpreter shares. They're behind the
+    // globals rather than in them, so an embedder's map of globals only ever
+    // holds what the program and the embedder put there.
+    static final Map<String, Object> NATIVES = Map.of("clock", new LoxCallable() {
+        @Override
+        public int arity() {
+            return 0;
+        }
 
-            @Override
-            public Object call(Interpreter interpreter, List<Object> args) {
-                return (double) System.currentTimeMillis() / 1000.0;
-            }
+        @Override
+        public Object call(Interpreter interpreter, List<Object> args) {
+            return (double) System.currentTimeMillis() / 1000.0;
+        }
 
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    });
+
+    private final PrintWriter out;
+    private final ErrorReporter reporter;
+    public final Environment globals;
+    private Environment environment;
+    // resolution of the program whose code is running right now. Functions carry
+    // the resolution of the program that declared them, so this is switched on
+    // every call and nothing here is ever written to.
+    private Map<Expr, Integer> locals = Map.of();
+    // and what the functions it declares capture, switched along with locals
+    private Map<Stmt.Function, List<Resolver.Capture>> captures = Map.of();
+    // and the types TypeInference found in it
+    private Map<Expr, TypeInference.Type> types = Map.of();
+    // and its calls in tail position (see Resolver)
+    private Set<Expr.Call> tailCalls = Set.of();
+    // null unless allocation accounting was requested
+    AllocationTracker allocations = null;
+    final NodeCompiler compiler = new NodeCompiler(this);
+    // null unless a profile is being recorded
+    Profiler profiler = null;
+    // Lox calls in progress. Going past maxDepth is a Lox runtime error instead
+    // of a StackOverflowError, given a thread with stackSize(maxDepth) of stack,
+    // which LoxThread.run() sees to.
+    int depth = 0;
+    int maxDepth = MAX_DEPTH;
+    // the call expression whose callee is being entered, for Lox stack traces
+    Token callSite = null;
+    // the frames of the calls in progress, by depth. A call takes the frame for
+    // its depth and empties it when it returns, so recursion allocates frames
+    // only the first time it gets this deep. This is safe because nothing keeps
+    // a frame past its call: closures copy what they capture (see Resolver),
+    // and bound methods keep this in an environment of its own.
+    private Environment[] frames = new Environment[64];
+
+    Interpreter(PrintWriter out, ErrorReporter reporter, Environment globals) {
+        this.out = out;
+        this.reporter = reporter;
+        this.globals = globals;
+        this.environment = globals;
+        globals.natives = NATIVES;
+    }
+
+    // the environment for the parameters and locals of a call at the current
+    // depth, enclosed by the function's closure
+    Environment frame(Environment closure) {
+        if (depth >= frames.length)
+            frames = Arrays.copyOf(frames, frames.length * 2);
+
+        Environment frame = frames[depth];
+        if (frame == null) {
+            frame = new Environment(closure);
+            frames[depth] = frame;
+        } else {
+            frame.reset(closure);
+        }
+        return frame;
+    }
+
+    // lets go of the values of the call at the current depth once it's done
+    void release() {
+        // a call that ran out of stack may not have got its frame
+        if (depth < frames.length && frames[depth] != null)
+            frames[depth].values.clear();
+    }
+
+    // the thread stack to run an interpreter with the given maxDepth on
+    static long stackSize(int maxDepth) {
+        return maxDepth * STACK_BYTES_PER_CALL + 1024 * 1024;
     }
 
     // accepts a list of statment, otherwise called a program ;)
-    void interpret(List<Stmt> statements) {
+    // returns false if the program stopped on a runtime error
+    boolean interpret(List<Stmt> statements, Map<Expr, Integer> resolved,
+            Map<Stmt.Function, List<Resolver.Capture>> captured, Map<Expr, TypeInference.Type> inferred,
+            Set<Expr.Call> tails) {
+        try {
+            run(statements, resolved, captured, inferred, tails);
+            return true;
+        } catch (RuntimeError error) {
+            reporter.runtimeError(error);
+            return false;
+        }
+    }
+
+    // like interpret(), but runtime errors are left to the caller
+    void run(List<Stmt> statements, Map<Expr, Integer> resolved,
+            Map<Stmt.Function, List<Resolver.Capture>> captured, Map<Expr, TypeInference.Type> inferred,
+            Set<Expr.Call> tails) {
+        Map<Expr, Integer> previous = this.locals;
+        Map<Stmt.Function, List<Resolver.Capture>> previousCaptures = this.captures;
+        Map<Expr, TypeInference.Type> previousTypes = this.types;
+        Set<Expr.Call> previousTailCalls = this.tailCalls;
         try {
+            this.locals = resolved;
+            this.captures = captured;
+            this.types = inferred;
+            this.tailCalls = tails;
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            if (LoxEvents.ENABLED) {
+                LoxRuntimeErrorEvent event = new LoxRuntimeErrorEvent();
+                if (event.shouldCommit()) {
+                    event.message = error.getMessage();
+                    event.line = error.token.line;
+                    event.commit();
+                }
+            }
+            throw error;
+        } finally {
+            this.locals = previous;
+            this.captures = previousCaptures;
+            this.types = previousTypes;
+            this.tailCalls = previousTailCalls;
         }
     }
 
@@ -108,7 +220,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         switch (expr.operator.type) {
             case MINUS:
                 checkNumberOperand(expr.operator, right);
-                return -(double) right;
+                return Numbers.negate(right);
             case BANG:
                 return !isTruthy(right);
             default:
@@ -121,48 +233,50 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitBinaryExpr(Binary expr) {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        if (profiler != null)
+            profiler.binary(expr, left, right);
 
         switch (expr.operator.type) {
             case GREATER:
                 checkNumberOperands(expr.operator, left, right);
-                return (double) left > (double) right;
+                return Numbers.greater(left, right);
             case GREATER_EQUAL:
                 checkNumberOperands(expr.operator, left, right);
-                return (double) left >= (double) right;
+                return Numbers.greaterEqual(left, right);
             case LESS:
                 checkNumberOperands(expr.operator, left, right);
-                return (double) left < (double) right;
+                return Numbers.less(left, right);
             case LESS_EQUAL:
                 checkNumberOperands(expr.operator, left, right);
-                return (double) left <= (double) right;
+                return Numbers.lessEqual(left, right);
 
             case MINUS:
                 checkNumberOperands(expr.operator, left, right);
-                return (double) left - (double) right;
+                return Numbers.subtract(left, right);
             case MINUSEQUALS:
                 checkNumberOperands(expr.operator, left, right);
-                return (double) left - (double) right;
+                return Numbers.subtract(left, right);
             case PLUS:
-                if (left instanceof Double && right instanceof Double)
-                    return (double) left + (double) right;
-                if (left instanceof String && right instanceof String)
-                    return (String) left + (String) right;
+                if (Numbers.isNumber(left) && Numbers.isNumber(right))
+                    return Numbers.add(left, right);
+                if (Rope.isString(left) && Rope.isString(right))
+                    return concatenate(expr.operator, (CharSequence) left, (CharSequence) right);
                 throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
             case PLUSEQUALS:
-                if (left instanceof Double && right instanceof Double)
-                    return (double) left + (double) right;
-                if (left instanceof String && right instanceof String)
-                    return (String) left + (String) right;
+                if (Numbers.isNumber(left) && Numbers.isNumber(right))
+                    return Numbers.add(left, right);
+                if (Rope.isString(left) && Rope.isString(right))
+                    return concatenate(expr.operator, (CharSequence) left, (CharSequence) right);
                 throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
             case STAR:
                 checkNumberOperands(expr.operator, left, right);
-                return (double) left * (double) right;
+                return Numbers.multiply(left, right);
             case SLASH:
                 checkNumberOperands(expr.operator, left, right);
-                return (double) left / (double) right;
+                return Numbers.divide(left, right);
             case MODULO:
                 checkNumberOperands(expr.operator, left, right);
-                return (double) left % (double) right;
+                return Numbers.modulo(left, right);
             case BANG_EQUAL:
                 return !isEqual(left, right);
             case EQUAL_EQUAL:
@@ -172,15 +286,52 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
+    CharSequence concatenate(Token operator, CharSequence left, CharSequence right) {
+        CharSequence result = Rope.concat(left, right);
+        if (allocations != null)
+            allocations.string(operator, result);
+        return result;
+    }
+
     @Override
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
+        List<Object> arguments = evaluateArguments(expr);
+        LoxCallable function = checkCall(expr, callee, arguments);
+
+        callSite = expr.paren;
+        Object result = function.call(this, arguments);
+        if (allocations != null && function instanceof LoxClass)
+            allocations.instance(expr.paren, (LoxClass) function, (LoxInstance) result);
+        return result;
+    }
 
+    // a call in tail position. Calls to Lox functions aren't made here but
+    // handed back as a TailCall, for LoxFunction.call() to make once the caller
+    // has returned.
+    private Object tailCall(Expr.Call expr) {
+        Object callee = evaluate(expr.callee);
+        List<Object> arguments = evaluateArguments(expr);
+        LoxCallable function = checkCall(expr, callee, arguments);
+        if (function instanceof LoxFunction)
+            return new TailCall((LoxFunction) function, arguments);
+
+        callSite = expr.paren;
+        Object result = function.call(this, arguments);
+        if (allocations != null && function instanceof LoxClass)
+            allocations.instance(expr.paren, (LoxClass) function, (LoxInstance) result);
+        return result;
+    }
+
+    private List<Object> evaluateArguments(Expr.Call expr) {
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) {
             arguments.add(evaluate(argument));
         }
+        return arguments;
+    }
 
+    private LoxCallable checkCall(Expr.Call expr, Object callee, List<Object> arguments) {
         if (!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren, "Can only call functions and classes");
         }
@@ -190,12 +341,14 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             throw new RuntimeError(expr.paren,
                     "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
         }
-        return function.call(this, arguments);
+        return function;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
+        if (profiler != null)
+            profiler.receiver(expr, object);
         if (object instanceof LoxInstance) {
             return ((LoxInstance) object).get(expr.name);
         }
@@ -212,42 +365,104 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
+        LoxFunction function = new LoxFunction(stmt, closure(stmt), locals, captures, types, tailCalls, false);
+        if (allocations != null)
+            allocations.closure(stmt.name);
+        environment.define(stmt.name, function);
+        capture(function);
         return null;
     }
 
+    // the closure of a function about to be declared: just the globals if it
+    // captures nothing, otherwise a flat environment for capture() to fill
+    private Environment closure(Stmt.Function declaration) {
+        if (!captures.containsKey(declaration))
+            return globals;
+        return new Environment(globals);
+    }
+
+    // copies what a function captures into its closure. This runs once the
+    // function is defined, so one that calls itself can capture itself.
+    private void capture(LoxFunction function) {
+        List<Resolver.Capture> captured = captures.get(function.declaration);
+        if (captured == null)
+            return;
+
+        for (Resolver.Capture capture : captured) {
+            Environment scope = environment.ancestor(capture.depth);
+            Object value = scope.values.get(capture.name);
+            if (capture.mutable && !(value instanceof Box)) {
+                value = new Box(value);
+                scope.values.put(capture.name, value);
+            }
+            function.closure.values.put(capture.name, value);
+        }
+    }
+
     @Override
     public Void visitPrintStmt(Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        print(evaluate(stmt.expression));
         return null;
     }
 
+    void print(Object value) {
+        out.println(stringify(value));
+    }
+
     @Override
     public Void visitReturnStmt(Return stmt) {
         Object value = null;
-        if (stmt.value != null)
-            value = evaluate(stmt.value);
+        if (stmt.value != null) {
+            if (!tailCalls.isEmpty() && tailCalls.contains(stmt.value))
+                value = tailCall((Expr.Call) stmt.value);
+            else
+                value = evaluate(stmt.value);
+        }
 
         throw new FunReturn(value);
     }
 
+    @Override
+    public Void visitConstStmt(Stmt.Const stmt) {
+        environment.defineConst(stmt.name, evaluate(stmt.initializer));
+        return null;
+    }
+
     @Override
     public Void visitVarStmt(Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme, value); // if there's no initializer, the value is nil (null)
+        environment.define(stmt.name, value); // if there's no initializer, the value is nil (null)
         return null;
     }
 
     @Override
     public Void visitWhileStmt(While stmt) {
+        if (compiler.isHot(stmt))
+            return osr(stmt);
+
+        int backEdges = 0;
+        boolean hot = false;
         while (isTruthy(evaluate(stmt.condition))) {
             execute(stmt.body);
+            if (++backEdges == NodeCompiler.LOOP_THRESHOLD && NodeCompiler.ENABLED) {
+                hot = true;
+                break;
+            }
         }
+        if (profiler != null)
+            profiler.loop(stmt, backEdges);
+        return hot ? osr(stmt) : null;
+    }
+
+    // carries on with a loop in the node tier, from wherever the interpreter got
+    // to in it
+    private Void osr(While stmt) {
+        Object result = compiler.loop(stmt, locals, captures, types, tailCalls).run(environment);
+        if (result != Node.NORMAL)
+            throw new FunReturn(result);
         return null;
     }
 
@@ -261,7 +476,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (distance != null) {
             return environment.getAt(distance, name.lexeme);
         } else {
-            return globals.get(name);
+            return globals.get(globals.cell(name.lexeme), name);
         }
     }
 
@@ -272,47 +487,70 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (distance != null) {
             environment.assignAt(distance, expr.name, value);
         } else {
-            globals.assign(expr.name, value);
+            globals.assign(globals.cell(expr.name.lexeme), expr.name, value);
         }
         return value;
     }
 
     @Override
     public Void visitBlockStmt(Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        executeBlock(stmt.statements, new Environment(environment), locals, captures, types, tailCalls);
         return null;
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    // function bodies pass the resolution of their own program, which may not be
+    // the caller's
+    void executeBlock(List<Stmt> statements, Environment environment, Map<Expr, Integer> resolved,
+            Map<Stmt.Function, List<Resolver.Capture>> captured, Map<Expr, TypeInference.Type> inferred,
+            Set<Expr.Call> tails) {
         Environment previous = this.environment;
+        Map<Expr, Integer> previousLocals = this.locals;
+        Map<Stmt.Function, List<Resolver.Capture>> previousCaptures = this.captures;
+        Map<Expr, TypeInference.Type> previousTypes = this.types;
+        Set<Expr.Call> previousTailCalls = this.tailCalls;
         try {
             this.environment = environment;
+            this.locals = resolved;
+            this.captures = captured;
+            this.types = inferred;
+            this.tailCalls = tails;
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } finally {
             this.environment = previous;
+            this.locals = previousLocals;
+            this.captures = previousCaptures;
+            this.types = previousTypes;
+            this.tailCalls = previousTailCalls;
         }
     }
 
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
-        environment.define(stmt.name.lexeme, null);
+        environment.define(stmt.name, null);
 
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+            LoxFunction function = new LoxFunction(method, closure(method), locals, captures, types, tailCalls,
+                    method.name.lexeme.equals("init"));
             methods.put(method.name.lexeme, function);
         }
 
         LoxClass klass = new LoxClass(stmt.name.lexeme, methods);
         environment.assign(stmt.name, klass);
+        for (LoxFunction method : methods.values()) {
+            capture(method);
+        }
         return null;
     }
 
     @Override
     public Void visitIfStmt(If stmt) {
-        if (isTruthy(evaluate(stmt.condition))) {
+        boolean taken = isTruthy(evaluate(stmt.condition));
+        if (profiler != null)
+            profiler.branch(stmt, taken);
+        if (taken) {
             execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null)
             execute(stmt.elseBranch);
@@ -327,33 +565,34 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
-    }
-
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null)
             return true;
         if (a == null)
             return false;
+        if (Numbers.isNumber(a) && Numbers.isNumber(b))
+            return Numbers.equal(a, b);
+        // String.equals() doesn't know about Ropes
+        if (b instanceof Rope)
+            return b.equals(a);
 
         return a.equals(b);
     }
 
     private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double)
+        if (Numbers.isNumber(operand))
             return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
     private void checkNumberOperands(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double)
+        if (Numbers.isNumber(left) && Numbers.isNumber(right))
             return;
 
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object instanceof Boolean)
             return (boolean) object;
         else if (object == null)
@@ -365,15 +604,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (object == null)
             return "nil";
 
-        if (object instanceof Double) {
-            String text = object.toString();
-
-            // handle integers
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
-        }
+        if (Numbers.isNumber(object))
+            return Numbers.toString(object);
 
         return object.toString();
     }
@@ -3,99 +3,209 @@ package jlox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
+import java.time.Duration;
+import java.time.Instant;
 
 public class Lox {
-  private static final Interpreter interpreter = new Interpreter();
-  static boolean hadError = false;
-  static boolean hadRuntimeError = false;
+  static final String USAGE = "Usage: jlox [--ast] [--alloc-stats] [--type-stats] [--timing] [--no-opt]\n"
+      + "            [--prelude <file>] [--image <file>] [--snapshot <file>] [--profile <file>]\n"
+      + "            [--max-depth <n>] [script]\n"
+      + "       jlox --server <socket>";
 
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64); // https://www.freebsd.org/cgi/man.cgi?query=sysexits&apropos=0&sektion=0&manpath=FreeBSD+4.3-RELEASE&format=html
-    } else if (args.length == 1) {
-      runFile(args[0]);
-    } else {
-      runPrompt();
+    if (args.length > 0 && args[0].equals("--server")) {
+      if (args.length != 2) {
+        System.out.println(USAGE);
+        System.exit(64);
+      }
+      new LoxServer(newRuntime(), Paths.get(args[1])).serve();
+      return;
+    }
+
+    // scripts run on a thread with room for --max-depth Lox calls (see LoxThread)
+    int status = run(args, Paths.get(""), newRuntime(), System.out, System.err, true);
+    if (status != 0)
+      System.exit(status); // https://www.freebsd.org/cgi/man.cgi?query=sysexits&apropos=0&sektion=0&manpath=FreeBSD+4.3-RELEASE&format=html
+  }
+
+  // compile errors are printed by run() to the stderr of each command line
+  private static LoxRuntime newRuntime() {
+    return new LoxRuntime(System.out, new PrintStream(OutputStream.nullOutputStream()));
+  }
+
+  // Runs one jlox command line and returns its exit code. The server runs its
+  // requests through here as well, so nothing below may exit the JVM or write to
+  // System.out/System.err directly.
+  static int run(String[] args, Path cwd, LoxRuntime runtime, PrintStream out, PrintStream err,
+      boolean interactive) throws IOException {
+    boolean dumpAst = false; // write the AST to AST.txt instead of running the program
+    boolean allocStats = false;
+    boolean typeStats = false; // report how much of each program TypeInference typed
+    boolean timing = false; // report the time from JVM start to the first statement
+    boolean optimize = true; // fold constant expressions and remove dead branches before running
+    String prelude = null; // run before the script, into the same globals
+    String image = null; // start from a snapshot of the globals instead of an empty environment
+    String snapshot = null; // write the globals after the prelude to this file
+    String profile = null; // start from the execution profile in this file, and update it when done
+    int maxDepth = Interpreter.MAX_DEPTH; // deepest Lox recursion before a "Stack overflow." error
+    String script = null;
+
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--alloc-stats")) {
+        allocStats = true;
+      } else if (arg.equals("--type-stats")) {
+        typeStats = true;
+      } else if (arg.equals("--ast")) {
+        dumpAst = true;
+      } else if (arg.equals("--timing")) {
+        timing = true;
+      } else if (arg.equals("--no-opt")) {
+        optimize = false;
+      } else if (arg.equals("--prelude") && i + 1 < args.length) {
+        prelude = args[++i];
+      } else if (arg.equals("--image") && i + 1 < args.length) {
+        image = args[++i];
+      } else if (arg.equals("--snapshot") && i + 1 < args.length) {
+        snapshot = args[++i];
+      } else if (arg.equals("--profile") && i + 1 < args.length) {
+        profile = args[++i];
+      } else if (arg.equals("--max-depth") && i + 1 < args.length && args[i + 1].matches("[0-9]{1,9}")) {
+        maxDepth = Integer.parseInt(args[++i]);
+      } else if (script == null && !arg.startsWith("--")) {
+        script = arg;
+      } else {
+        out.println(USAGE);
+        return 64;
+      }
+    }
+
+    Environment globals = new Environment();
+    if (image != null) {
+      try {
+        globals = Snapshot.load(cwd.resolve(image));
+      } catch (IOException e) {
+        err.println("Could not load snapshot: " + e.getMessage());
+        return 66;
+      }
+    }
+
+    LoxContext context = new LoxContext(new PrintWriter(out, true), new PrintWriter(err, true), globals);
+    context.interpreter.maxDepth = maxDepth;
+    if (allocStats)
+      context.interpreter.allocations = new AllocationTracker();
+    if (profile != null) {
+      Profiler profiler = new Profiler(context.interpreter.compiler);
+      try {
+        profiler.load(cwd.resolve(profile));
+      } catch (IOException e) {
+        err.println("Ignoring profile: " + e.getMessage());
+        profiler = new Profiler(context.interpreter.compiler);
+      }
+      context.interpreter.profiler = profiler;
+    }
+
+    AllocationTracker allocations = context.interpreter.allocations;
+    if (allocations != null)
+      allocations.start();
+    try {
+      int status = 0;
+      if (prelude != null)
+        status = runFile(runtime, context, cwd.resolve(prelude), err, dumpAst, optimize, typeStats, false);
+
+      // a prelude that failed may have left only some of its globals
+      if (status == 0 && snapshot != null)
+        Snapshot.save(context.interpreter.globals, cwd.resolve(snapshot));
+
+      if (status != 0) {
+        // the prelude failed to compile or to run
+      } else if (script != null) {
+        status = runFile(runtime, context, cwd.resolve(script), err, dumpAst, optimize, typeStats, timing);
+      } else if (snapshot != null) {
+        // only asked to write the snapshot
+      } else if (interactive) {
+        runPrompt(runtime, context, out, err, dumpAst, optimize, typeStats);
+      } else {
+        out.println(USAGE);
+        return 64;
+      }
+
+      if (context.interpreter.profiler != null)
+        context.interpreter.profiler.save(cwd.resolve(profile));
+      return status;
+    } finally {
+      if (allocations != null) {
+        allocations.stop();
+        allocations.report(err);
+      }
     }
   }
 
-  private static void runFile(String path) throws IOException {
-    byte[] bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
+  private static int runFile(LoxRuntime runtime, LoxContext context, Path path, PrintStream err,
+      boolean dumpAst, boolean optimize, boolean typeStats, boolean timing) throws IOException {
+    byte[] bytes = Files.readAllBytes(path);
+    CompiledScript script = run(runtime, context, new String(bytes, Charset.defaultCharset()), err, dumpAst,
+        optimize, typeStats, timing);
 
     // Indicate an error in the exit code.
-    if (hadError)
-      System.exit(65);
+    if (script.hadError())
+      return 65;
+    if (context.hadRuntimeError())
+      return 70;
+    return 0;
   }
 
-  private static void runPrompt() throws IOException {
+  private static void runPrompt(LoxRuntime runtime, LoxContext context, PrintStream out, PrintStream err,
+      boolean dumpAst, boolean optimize, boolean typeStats) throws IOException {
     InputStreamReader input = new InputStreamReader(System.in);
     BufferedReader reader = new BufferedReader(input);
 
     for (;;) {
-      System.out.print("> ");
+      out.print("> ");
+      out.flush();
       String line = reader.readLine();
       if (line == null || line.equals(".exit"))
         break;
 
-      run(line);
-      hadError = false;
+      run(runtime, context, line, err, dumpAst, optimize, typeStats, false);
     }
   }
 
-  private static void run(String source) {
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
+  private static CompiledScript run(LoxRuntime runtime, LoxContext context, String source, PrintStream err,
+      boolean dumpAst, boolean optimize, boolean typeStats, boolean timing) {
+    CompiledScript script = runtime.compile(source, optimize);
 
-    // // For now, just print the tokens.
-    // for (Token token : tokens) {
-    // System.out.println(token);
-    // }
-    // System.out.println("***");
-
-    Parser parser = new Parser(tokens);
-    List<Stmt> statements = parser.parse();
-
-    // stop if there was a syntax error
-    if (hadError)
-      return;
-
-    Resolver resolver = new Resolver(interpreter); // semantic analysis
-    resolver.resolve(statements);
-
-    // Stop if there was a resolution error.
-    if (hadError)
-      return;
-
-    new AstPrinter().printTree(statements, false, true);
-    // interpreter.interpret(statements);
-  }
+    // stop if there was a syntax or resolution error
+    if (script.hadError()) {
+      for (String error : script.errors()) {
+        err.println(error);
+      }
+      return script;
+    }
 
-  static void error(int line, String message) {
-    report(line, "", message);
-  }
+    if (typeStats)
+      TypeInference.report(script.statements, script.locals, script.captures, err);
 
-  static void error(Token token, String message) {
-    if (token.type == TokenType.EOF) {
-      report(token.line, " at end", message);
-    } else {
-      report(token.line, " at '" + token.lexeme + "'", message);
+    if (timing) {
+      // the start instant comes from /proc on Linux, so it's only good to ~10 ms
+      ProcessHandle.current().info().startInstant().ifPresent(start -> err.println(
+          "time to first statement: " + Duration.between(start, Instant.now()).toMillis() + " ms"));
     }
-  }
 
-  static void runtimeError(RuntimeError error) {
-    // System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
-    System.err.println("[line " + error.token.line + "] -->  " + error.getMessage());
-    hadRuntimeError = true;
-  }
+    if (context.interpreter.profiler != null)
+      context.interpreter.profiler.attach(source, script.statements);
 
-  private static void report(int line, String where, String message) {
-    System.err.println("[line " + line + "] Error" + where + ": " + message);
-    hadError = true;
+    if (dumpAst)
+      new AstPrinter(context.reporter).printTree(script.statements, false, true);
+    else
+      script.run(context);
+    return script;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,34 @@
+package jlox;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+// Periodic JFR event for one allocation site of a program run with
+// --alloc-stats, with its totals so far.
+@Name("jlox.AllocationSite")
+@Label("Lox Allocation Site")
+@Category({ "Lox", "Memory" })
+@Description("Objects and estimated bytes a Lox allocation site has allocated so far")
+@StackTrace(false)
+@Period("1 s")
+class LoxAllocationSiteEvent extends Event {
+    @Label("Site")
+    @Description("What was allocated: an instance of a class, a closure or a string")
+    String site;
+
+    @Label("Line")
+    int line;
+
+    @Label("Count")
+    long count;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,29 @@
+package jlox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// JFR event for a single Lox function activation. Only calls that take longer
+// than the threshold are recorded, so the hot path stays cheap.
+@Name("jlox.FunctionCall")
+@Label("Lox Function Call")
+@Category({ "Lox", "Execution" })
+@Description("A Lox function call that ran longer than the configured threshold")
+@StackTrace(false)
+@Threshold("1 ms")
+class LoxCallEvent extends Event {
+    @Label("Function")
+    String function;
+
+    @Label("Line")
+    @Description("Line of the function declaration")
+    int line;
+
+    @Label("Arity")
+    int arity;
+}
@@ -5,7 +5,7 @@ import java.util.Map;
 
 class LoxClass implements LoxCallable {
     final String name;
-    private final Map<String, LoxFunction> methods;
+    final Map<String, LoxFunction> methods;
 
     LoxClass(String name, Map<String, LoxFunction> methods) {
         this.name = name;
@@ -15,6 +15,14 @@ class LoxClass implements LoxCallable {
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
+
+        if (LoxEvents.ENABLED) {
+            LoxInstantiationEvent event = new LoxInstantiationEvent();
+            if (event.shouldCommit()) {
+                event.className = name;
+                event.commit();
+            }
+        }
         return instance;
     }
 
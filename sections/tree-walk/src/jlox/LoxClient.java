@@ -0,0 +1,55 @@
+package jlox;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+
+/**
+ * Thin client for {@link LoxServer}: forwards its arguments and working
+ * directory, copies the streamed stdout/stderr and exits with the script's exit
+ * code. It only touches java.base classes so it starts as fast as a JVM can.
+ *
+ * <pre>
+ *   java -cp bin jlox.LoxClient /tmp/jlox.sock script.lox
+ * </pre>
+ */
+public class LoxClient {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: jlox-client <socket> [jlox arguments]");
+            System.exit(64);
+        }
+
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(args[0]))) {
+            DataOutputStream request = new DataOutputStream(Channels.newOutputStream(channel));
+            request.writeUTF(Paths.get("").toAbsolutePath().toString());
+            request.writeInt(args.length - 1);
+            for (int i = 1; i < args.length; i++) {
+                request.writeUTF(args[i]);
+            }
+            request.flush();
+
+            DataInputStream response = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            for (;;) {
+                byte tag = response.readByte();
+                if (tag == LoxServer.EXIT) {
+                    System.out.flush();
+                    System.err.flush();
+                    System.exit(response.readInt());
+                }
+
+                byte[] bytes = new byte[response.readInt()];
+                response.readFully(bytes);
+                PrintStream stream = tag == LoxServer.STDERR ? System.err : System.out;
+                stream.write(bytes);
+                stream.flush();
+            }
+        }
+    }
+}
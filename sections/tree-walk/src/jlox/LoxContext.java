@@ -0,0 +1,51 @@
+package jlox;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Everything one execution needs that isn't part of the program: the global
+ * environment, stdout/stderr and the runtime error flag. Scripts run against
+ * the same context see each other's globals, like lines typed into the REPL.
+ */
+public class LoxContext {
+    final ErrorReporter reporter;
+    final Interpreter interpreter;
+
+    public LoxContext() {
+        this(System.out, System.err);
+    }
+
+    public LoxContext(PrintStream out, PrintStream err) {
+        this(new PrintWriter(out, true), new PrintWriter(err, true));
+    }
+
+    public LoxContext(Writer out, Writer err) {
+        this(printWriter(out), printWriter(err), new Environment());
+    }
+
+    // globals kept in a map owned by the caller, so they outlive the context,
+    // as do the names of the consts among them
+    LoxContext(Writer out, Writer err, Map<String, Object> globals, Set<String> consts) {
+        this(printWriter(out), printWriter(err), new Environment(globals, consts));
+    }
+
+    LoxContext(PrintWriter out, PrintWriter err, Environment globals) {
+        this.reporter = new ErrorReporter(err);
+        this.interpreter = new Interpreter(out, reporter, globals);
+    }
+
+    /** True if any script run against this context hit a runtime error. */
+    public boolean hadRuntimeError() {
+        return reporter.hadRuntimeError;
+    }
+
+    private static PrintWriter printWriter(Writer writer) {
+        if (writer instanceof PrintWriter)
+            return (PrintWriter) writer;
+        return new PrintWriter(writer, true);
+    }
+}
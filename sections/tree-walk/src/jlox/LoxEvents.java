@@ -0,0 +1,15 @@
+package jlox;
+
+import jdk.jfr.FlightRecorder;
+
+// Gate for the JFR events. The first jdk.jfr.Event a JVM creates initializes
+// JFR, which costs hundreds of milliseconds of startup even when nothing is
+// recording. So the events are only used when JFR was already running when
+// jlox started (-XX:StartFlightRecording), or when -Djlox.jfr=true asks for
+// them so that a recording started later with jcmd can see them.
+final class LoxEvents {
+    static final boolean ENABLED = Boolean.getBoolean("jlox.jfr") || FlightRecorder.isInitialized();
+
+    private LoxEvents() {
+    }
+}
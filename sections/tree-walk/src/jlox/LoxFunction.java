@@ -1,38 +1,116 @@
 package jlox;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
-    private final Environment closure;
-    private final boolean isInitializer;
+    final Stmt.Function declaration;
+    final Environment closure;
+    final Map<Expr, Integer> locals; // resolution of the declaring program
+    final Map<Stmt.Function, List<Resolver.Capture>> captures; // and what its functions capture
+    final Map<Expr, TypeInference.Type> types; // and the types inferred for it
+    final Set<Expr.Call> tailCalls; // and its calls in tail position
+    final boolean isInitializer;
+    final NodeCompiler.Profile profile; // when to move the body to the node tier
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    // the closure holds just what the function captures (see Resolver), with a
+    // method's this in between when it's bound
+    LoxFunction(Stmt.Function declaration, Environment closure, Map<Expr, Integer> locals,
+            Map<Stmt.Function, List<Resolver.Capture>> captures, Map<Expr, TypeInference.Type> types,
+            Set<Expr.Call> tailCalls, boolean isInitializer) {
+        this(declaration, closure, locals, captures, types, tailCalls, isInitializer, new NodeCompiler.Profile());
+    }
+
+    private LoxFunction(Stmt.Function declaration, Environment closure, Map<Expr, Integer> locals,
+            Map<Stmt.Function, List<Resolver.Capture>> captures, Map<Expr, TypeInference.Type> types,
+            Set<Expr.Call> tailCalls, boolean isInitializer, NodeCompiler.Profile profile) {
         this.isInitializer = isInitializer;
         this.declaration = declaration;
         this.closure = closure;
+        this.locals = locals;
+        this.captures = captures;
+        this.types = types;
+        this.tailCalls = tailCalls;
+        this.profile = profile;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure); // each function gets its own env where params
-                                                            // and internal vars are stored
-
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
-        }
+        Token callSite = interpreter.callSite;
+        interpreter.callSite = null; // so a call from Java doesn't inherit it
+        if (interpreter.depth >= interpreter.maxDepth)
+            throw new RuntimeError(callSite != null ? callSite : declaration.name, "Stack overflow.");
+        interpreter.depth++;
 
+        // a call in tail position comes back here as a TailCall instead of
+        // running inside the caller, so a chain of them runs in this one frame
+        // and counts as one level of depth
+        LoxFunction function = this;
         try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (FunReturn returnValue) {
-            if (isInitializer)
-                return closure.getAt(0, "this");
-                
-            return returnValue.value;
+            for (;;) {
+                LoxCallEvent event = null;
+                if (LoxEvents.ENABLED) {
+                    event = new LoxCallEvent();
+                    event.begin();
+                }
+
+                Environment environment = interpreter.frame(function.closure); // each call gets its own env
+                                                                               // where params and internal
+                                                                               // vars are stored
+
+                List<Token> params = function.declaration.params;
+                for (int i = 0; i < params.size(); i++) {
+                    environment.define(params.get(i).lexeme, arguments.get(i));
+                }
+
+                Object result = null;
+                try {
+                    Node.Unit compiled = interpreter.compiler.function(function);
+                    if (compiled == null) {
+                        interpreter.executeBlock(function.declaration.body, environment, function.locals,
+                                function.captures, function.types, function.tailCalls);
+                    } else {
+                        // the node tier hands back return values instead of throwing them
+                        result = compiled.run(environment);
+                        if (result == Node.NORMAL)
+                            result = null;
+                    }
+                } catch (FunReturn returnValue) {
+                    result = returnValue.value;
+                } finally {
+                    if (event != null) {
+                        event.end();
+                        if (event.shouldCommit()) {
+                            event.function = function.declaration.name.lexeme;
+                            event.line = function.declaration.name.line;
+                            event.arity = function.arity();
+                            event.commit();
+                        }
+                    }
+                }
+
+                if (function.isInitializer)
+                    return function.closure.getAt(0, "this");
+                if (!(result instanceof TailCall))
+                    return result;
+
+                TailCall next = (TailCall) result;
+                function = next.function;
+                arguments = next.arguments;
+            }
+        } catch (RuntimeError error) {
+            error.unwind(function.declaration.name.lexeme, callSite);
+            throw error;
+        } catch (StackOverflowError e) {
+            // the Java stack ran out before maxDepth was reached
+            RuntimeError error = new RuntimeError(function.declaration.name, "Stack overflow.");
+            error.unwind(function.declaration.name.lexeme, callSite);
+            throw error;
+        } finally {
+            interpreter.release();
+            interpreter.depth--;
         }
-        if (isInitializer)
-            return closure.getAt(0, "this");
-        return null;
     }
 
     @Override
@@ -43,7 +121,8 @@ class LoxFunction implements LoxCallable {
     LoxFunction bind(LoxInstance instance) {
         Environment environment = new Environment(closure);
         environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, environment, locals, captures, types, tailCalls, isInitializer,
+                profile);
     }
 
     @Override
@@ -4,8 +4,8 @@ import java.util.HashMap;
 import java.util.Map;
 
 class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    final LoxClass klass;
+    final Map<String, Object> fields = new HashMap<>();
 
     public LoxInstance(LoxClass klass) {
         this.klass = klass;
@@ -0,0 +1,19 @@
+package jlox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// JFR event for every LoxInstance created by calling a LoxClass.
+@Name("jlox.ClassInstantiation")
+@Label("Lox Class Instantiation")
+@Category({ "Lox", "Execution" })
+@Description("A Lox class was called to create a new instance")
+@StackTrace(false)
+class LoxInstantiationEvent extends Event {
+    @Label("Class")
+    String className;
+}
@@ -0,0 +1,25 @@
+package jlox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+// Periodic JFR event for one class of a program run with --alloc-stats, with
+// the number of its instances still reachable.
+@Name("jlox.LiveInstances")
+@Label("Lox Live Instances")
+@Category({ "Lox", "Memory" })
+@Description("Instances of a Lox class that were still reachable as of the last GC")
+@StackTrace(false)
+@Period("1 s")
+class LoxLiveInstancesEvent extends Event {
+    @Label("Class")
+    String className;
+
+    @Label("Instances")
+    int count;
+}
@@ -0,0 +1,24 @@
+package jlox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// JFR event for one front-end phase (scan, parse, resolve, optimize,
+// infer) of a Lox program.
+@Name("jlox.Phase")
+@Label("Lox Front-End Phase")
+@Category({ "Lox", "Front End" })
+@Description("Time spent scanning, parsing, resolving, optimizing or type-inferring Lox source")
+@StackTrace(false)
+class LoxPhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Size")
+    @Description("Characters scanned, tokens parsed, statements resolved or optimized, or expressions typed")
+    int size;
+}
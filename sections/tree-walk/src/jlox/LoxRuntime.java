@@ -0,0 +1,155 @@
+package jlox;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Entry point for embedding jlox. A runtime compiles source into
+ * {@link CompiledScript}s, which are then run against a {@link LoxContext}.
+ * There is no static state: any number of runtimes, scripts and contexts can
+ * live in one JVM, and a context may be used from one thread at a time.
+ * Compiled scripts are immutable and may be shared between threads; the
+ * runtime keeps the most recently used ones so hot scripts compile once.
+ */
+public class LoxRuntime {
+    private static final int DEFAULT_CACHE_SIZE = 256;
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Map<String, CompiledScript> cache;
+
+    public LoxRuntime() {
+        this(System.out, System.err);
+    }
+
+    /**
+     * @param out default stdout for contexts made by {@link #newContext()}
+     * @param err receives compile errors, and is the default stderr for
+     *            contexts made by {@link #newContext()}
+     */
+    public LoxRuntime(PrintStream out, PrintStream err) {
+        this(out, err, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize how many compiled scripts to keep, keyed by source; 0
+     *                  turns the cache off
+     */
+    public LoxRuntime(PrintStream out, PrintStream err, int cacheSize) {
+        this.out = out;
+        this.err = err;
+        // access-ordered, so the eldest entry is the least recently used one
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public LoxContext newContext() {
+        return new LoxContext(out, err);
+    }
+
+    /**
+     * Scan, parse and resolve the source, or return the script compiled earlier
+     * from the same source. Syntax and resolution errors are written to this
+     * runtime's stderr and flagged on the returned script. Scripts with errors
+     * are never cached, so their errors are reported every time.
+     */
+    public CompiledScript compile(String source) {
+        return compile(source, true);
+    }
+
+    /**
+     * @param optimize false to run the program exactly as written, without
+     *                 folding constant expressions or removing dead branches;
+     *                 such scripts are not cached
+     */
+    public CompiledScript compile(String source, boolean optimize) {
+        if (!optimize)
+            return compileUncached(source, false);
+
+        synchronized (cache) {
+            CompiledScript cached = cache.get(source);
+            if (cached != null)
+                return cached;
+        }
+
+        CompiledScript script = compileUncached(source, true);
+        if (!script.hadError()) {
+            synchronized (cache) {
+                cache.put(source, script);
+            }
+        }
+        return script;
+    }
+
+    private CompiledScript compileUncached(String source, boolean optimize) {
+        ErrorReporter reporter = new ErrorReporter(new PrintWriter(err, true));
+
+        LoxPhaseEvent scan = beginPhase();
+        Scanner scanner = new Scanner(source, reporter);
+        List<Token> tokens = scanner.scanTokens();
+        commitPhase(scan, "scan", source.length());
+
+        LoxPhaseEvent parse = beginPhase();
+        Parser parser = new Parser(tokens, reporter);
+        List<Stmt> statements = parser.parse();
+        commitPhase(parse, "parse", tokens.size());
+
+        Map<Expr, Integer> locals = new HashMap<>();
+        Map<Stmt.Function, List<Resolver.Capture>> captures = new IdentityHashMap<>();
+        Set<Expr.Call> tailCalls = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<Expr, TypeInference.Type> types = Map.of();
+        // stop if there was a syntax error
+        if (!reporter.hadError) {
+            LoxPhaseEvent resolve = beginPhase();
+            Resolver resolver = new Resolver(locals, captures, tailCalls, reporter); // semantic analysis
+            resolver.resolve(statements);
+            commitPhase(resolve, "resolve", statements.size());
+
+            // runs even when not optimizing, since literal consts are only
+            // inlined here
+            if (!reporter.hadError) {
+                LoxPhaseEvent phase = beginPhase();
+                statements = new Optimizer(locals, captures, tailCalls, resolver.constants, optimize).optimize(statements);
+                commitPhase(phase, "optimize", statements.size());
+
+                phase = beginPhase();
+                types = TypeInference.infer(statements, locals, captures);
+                commitPhase(phase, "infer", types.size());
+            }
+        }
+
+        return new CompiledScript(statements, locals, captures, types, tailCalls, reporter.errors);
+    }
+
+    private static LoxPhaseEvent beginPhase() {
+        if (!LoxEvents.ENABLED)
+            return null;
+
+        LoxPhaseEvent event = new LoxPhaseEvent();
+        event.begin();
+        return event;
+    }
+
+    private static void commitPhase(LoxPhaseEvent event, String phase, int size) {
+        if (event == null)
+            return;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.phase = phase;
+            event.size = size;
+            event.commit();
+        }
+    }
+}
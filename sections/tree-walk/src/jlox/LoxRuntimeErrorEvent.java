@@ -0,0 +1,22 @@
+package jlox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// JFR event for a RuntimeError that aborted a Lox program.
+@Name("jlox.RuntimeError")
+@Label("Lox Runtime Error")
+@Category({ "Lox", "Execution" })
+@Description("A runtime error reported to the script author")
+@StackTrace(false)
+class LoxRuntimeErrorEvent extends Event {
+    @Label("Message")
+    String message;
+
+    @Label("Line")
+    int line;
+}
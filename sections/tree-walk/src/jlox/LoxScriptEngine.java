@@ -0,0 +1,274 @@
+package jlox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+/**
+ * JSR-223 engine for Lox. The engine-scope {@link Bindings} are the Lox globals:
+ * values put there by Java are visible to the script, and variables, functions
+ * and classes the script declares show up there afterwards, and a const stays
+ * a const in later evals with the same Bindings. Java numbers are
+ * converted to Lox numbers (Longs for integer types, Doubles otherwise) when a
+ * script runs, and Lox strings built by concatenation ({@link Rope}s) come
+ * back as Strings.
+ *
+ * <p>
+ * {@link #compile(String)} scans, parses and resolves once; the result can be
+ * evaluated any number of times, with any bindings, from any thread. Evals
+ * that share Bindings must not run at the same time, so the factory's
+ * THREADING parameter is null.
+ */
+public class LoxScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+    private final LoxScriptEngineFactory factory;
+    // compile errors are reported as ScriptExceptions, so the runtime prints nothing
+    private final LoxRuntime runtime = new LoxRuntime(
+            new PrintStream(OutputStream.nullOutputStream()),
+            new PrintStream(OutputStream.nullOutputStream()));
+    // the names of the consts declared in each engine-scope Bindings
+    private final List<Consts> consts = new ArrayList<>();
+
+    LoxScriptEngine(LoxScriptEngineFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        return compile(script).eval(context);
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        return eval(read(reader), context);
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new SimpleBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    @Override
+    public javax.script.CompiledScript compile(String script) throws ScriptException {
+        CompiledScript compiled = runtime.compile(script);
+        if (compiled.hadError())
+            throw new ScriptException(String.join("\n", compiled.errors()));
+
+        return new LoxCompiledScript(compiled);
+    }
+
+    @Override
+    public javax.script.CompiledScript compile(Reader script) throws ScriptException {
+        return compile(read(script));
+    }
+
+    @Override
+    public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+        Object function = getBindings(ScriptContext.ENGINE_SCOPE).get(name);
+        if (!(function instanceof LoxCallable))
+            throw new NoSuchMethodException("No Lox function '" + name + "'.");
+
+        return call((LoxCallable) function, args);
+    }
+
+    @Override
+    public Object invokeMethod(Object thiz, String name, Object... args)
+            throws ScriptException, NoSuchMethodException {
+        if (!(thiz instanceof LoxInstance))
+            throw new IllegalArgumentException("Can only invoke methods on Lox instances.");
+
+        Object method;
+        try {
+            method = ((LoxInstance) thiz).get(new Token(TokenType.IDENTIFIER, name, null, 0));
+        } catch (RuntimeError error) {
+            throw new NoSuchMethodException(error.getMessage());
+        }
+        if (!(method instanceof LoxCallable))
+            throw new NoSuchMethodException("Property '" + name + "' is not a method.");
+
+        return call((LoxCallable) method, args);
+    }
+
+    @Override
+    public <T> T getInterface(Class<T> type) {
+        return proxy(type, (proxy, method, args) -> invokeFunction(method.getName(), arguments(args)));
+    }
+
+    @Override
+    public <T> T getInterface(Object thiz, Class<T> type) {
+        if (!(thiz instanceof LoxInstance))
+            throw new IllegalArgumentException("Can only implement interfaces with Lox instances.");
+
+        return proxy(type, (proxy, method, args) -> invokeMethod(thiz, method.getName(), arguments(args)));
+    }
+
+    private Object call(LoxCallable callable, Object[] args) throws ScriptException {
+        List<Object> arguments = new ArrayList<>();
+        for (Object arg : args) {
+            arguments.add(toLox(arg));
+        }
+
+        if (arguments.size() != callable.arity()) {
+            throw new ScriptException(
+                    "Expected " + callable.arity() + " arguments but got " + arguments.size() + ".");
+        }
+
+        LoxContext lox = newContext(context, consts(context));
+        try {
+            return toJava(LoxThread.run(lox.interpreter.maxDepth, () -> callable.call(lox.interpreter, arguments)));
+        } catch (RuntimeError error) {
+            throw scriptException(error, context);
+        } finally {
+            toJava(context.getBindings(ScriptContext.ENGINE_SCOPE));
+        }
+    }
+
+    private Object run(CompiledScript script, ScriptContext context) throws ScriptException {
+        LoxContext lox = newContext(context, consts(context));
+        try {
+            LoxThread.run(lox.interpreter.maxDepth, () -> {
+                lox.interpreter.run(script.statements, script.locals, script.captures, script.types,
+                        script.tailCalls);
+                return null;
+            });
+        } catch (RuntimeError error) {
+            throw scriptException(error, context);
+        } finally {
+            toJava(context.getBindings(ScriptContext.ENGINE_SCOPE));
+        }
+        return null;
+    }
+
+    // Bindings compare by their contents, which change, so they're looked up by
+    // identity. The set goes when the caller drops the Bindings.
+    private static final class Consts extends WeakReference<Bindings> {
+        final Set<String> names = new HashSet<>();
+
+        Consts(Bindings bindings) {
+            super(bindings);
+        }
+    }
+
+    private Set<String> consts(ScriptContext context) {
+        Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        synchronized (consts) {
+            for (Iterator<Consts> i = consts.iterator(); i.hasNext();) {
+                Consts entry = i.next();
+                Bindings other = entry.get();
+                if (other == bindings)
+                    return entry.names;
+                if (other == null)
+                    i.remove();
+            }
+            Consts entry = new Consts(bindings);
+            consts.add(entry);
+            return entry.names;
+        }
+    }
+
+    // a fresh interpreter whose globals are the engine-scope bindings
+    private static LoxContext newContext(ScriptContext context, Set<String> consts) {
+        Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        for (Map.Entry<String, Object> entry : new ArrayList<>(bindings.entrySet())) {
+            Object value = toLox(entry.getValue());
+            if (value != entry.getValue())
+                bindings.put(entry.getKey(), value);
+        }
+
+        Writer out = context.getWriter() != null ? context.getWriter() : Writer.nullWriter();
+        Writer err = context.getErrorWriter() != null ? context.getErrorWriter() : Writer.nullWriter();
+        return new LoxContext(out, err, bindings, consts);
+    }
+
+    private static Object toLox(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+            return ((Number) value).longValue();
+        if (value instanceof Number && !Numbers.isNumber(value))
+            return ((Number) value).doubleValue();
+        if (value instanceof CharSequence && !Rope.isString(value))
+            return value.toString();
+        return value;
+    }
+
+    private static Object toJava(Object value) {
+        return value instanceof Rope ? value.toString() : value;
+    }
+
+    // the globals a script left, as Java sees them
+    private static void toJava(Bindings bindings) {
+        for (Map.Entry<String, Object> entry : new ArrayList<>(bindings.entrySet())) {
+            if (entry.getValue() instanceof Rope)
+                bindings.put(entry.getKey(), entry.getValue().toString());
+        }
+    }
+
+    private static ScriptException scriptException(RuntimeError error, ScriptContext context) {
+        Object file = context.getAttribute(ScriptEngine.FILENAME);
+        return new ScriptException(error.getMessage(), file != null ? file.toString() : null, error.token.line);
+    }
+
+    private static Object[] arguments(Object[] args) {
+        return args != null ? args : new Object[0];
+    }
+
+    private <T> T proxy(Class<T> type, InvocationHandler handler) {
+        if (type == null || !type.isInterface())
+            throw new IllegalArgumentException("Expected an interface.");
+
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    private static String read(Reader reader) throws ScriptException {
+        StringWriter source = new StringWriter();
+        try {
+            reader.transferTo(source);
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+        return source.toString();
+    }
+
+    private class LoxCompiledScript extends javax.script.CompiledScript {
+        private final CompiledScript script;
+
+        LoxCompiledScript(CompiledScript script) {
+            this.script = script;
+        }
+
+        @Override
+        public Object eval(ScriptContext context) throws ScriptException {
+            return run(script, context);
+        }
+
+        @Override
+        public ScriptEngine getEngine() {
+            return LoxScriptEngine.this;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package jlox;
+
+import java.util.List;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/**
+ * Makes jlox available through {@code javax.script}, e.g.
+ * {@code new ScriptEngineManager().getEngineByName("lox")}.
+ */
+public class LoxScriptEngineFactory implements ScriptEngineFactory {
+    private static final List<String> NAMES = List.of("jlox", "lox", "Lox");
+    private static final List<String> EXTENSIONS = List.of("lox");
+    private static final List<String> MIME_TYPES = List.of("application/x-lox", "text/x-lox");
+
+    @Override
+    public String getEngineName() {
+        return "jlox";
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return "1.0";
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return EXTENSIONS;
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return MIME_TYPES;
+    }
+
+    @Override
+    public List<String> getNames() {
+        return NAMES;
+    }
+
+    @Override
+    public String getLanguageName() {
+        return "Lox";
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return "1.0";
+    }
+
+    @Override
+    public Object getParameter(String key) {
+        switch (key) {
+            case ScriptEngine.ENGINE:
+                return getEngineName();
+            case ScriptEngine.ENGINE_VERSION:
+                return getEngineVersion();
+            case ScriptEngine.NAME:
+                return NAMES.get(0);
+            case ScriptEngine.LANGUAGE:
+                return getLanguageName();
+            case ScriptEngine.LANGUAGE_VERSION:
+                return getLanguageVersion();
+            case "THREADING":
+                // null: not thread-safe. Each eval gets its own interpreter, but
+                // they all read and write the engine-scope Bindings, a plain map.
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String getMethodCallSyntax(String obj, String m, String... args) {
+        return obj + "." + m + "(" + String.join(", ", args) + ")";
+    }
+
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        return "print \"" + toDisplay.replace("\"", "") + "\";";
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        StringBuilder builder = new StringBuilder();
+        for (String statement : statements) {
+            builder.append(statement);
+            if (!statement.trim().endsWith(";") && !statement.trim().endsWith("}"))
+                builder.append(';');
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new LoxScriptEngine(this);
+    }
+}
@@ -0,0 +1,143 @@
+package jlox;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a warmed-up JVM around and runs jlox command lines sent over a Unix
+ * domain socket, so short scripts don't pay for JVM startup, class loading and
+ * JIT warm-up on every invocation. Every request gets its own LoxContext; only
+ * the LoxRuntime (and its cache of compiled scripts) is shared.
+ *
+ * <p>
+ * Protocol, all values in DataOutput format:
+ * <ul>
+ * <li>request: UTF working directory, int argc, argc UTF arguments</li>
+ * <li>response: any number of frames of byte tag, int length, bytes, where the
+ * tag is {@link #STDOUT} or {@link #STDERR}, then {@link #EXIT} followed by the
+ * int exit code</li>
+ * </ul>
+ */
+class LoxServer {
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+    static final byte EXIT = 3;
+
+    private final LoxRuntime runtime;
+    private final Path socket;
+    // scripts themselves run on LoxThreads, with stack for their --max-depth
+    private final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "jlox-request");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    LoxServer(LoxRuntime runtime, Path socket) {
+        this.runtime = runtime;
+        this.socket = socket;
+    }
+
+    void serve() throws IOException {
+        // a socket file left behind by a server that was killed would block bind()
+        Files.deleteIfExists(socket);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.deleteIfExists(socket);
+            } catch (IOException ignored) {
+            }
+        }));
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            System.err.println("jlox listening on " + socket);
+
+            for (;;) {
+                SocketChannel client = server.accept();
+                workers.execute(() -> handle(client));
+            }
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (client) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream response = new DataOutputStream(Channels.newOutputStream(client));
+
+            Path cwd = Paths.get(in.readUTF());
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+
+            PrintStream out = new PrintStream(new FrameOutputStream(response, STDOUT), true, StandardCharsets.UTF_8);
+            PrintStream err = new PrintStream(new FrameOutputStream(response, STDERR), true, StandardCharsets.UTF_8);
+
+            int status;
+            try {
+                status = Lox.run(args, cwd, runtime, out, err, false);
+            } catch (IOException | RuntimeException | StackOverflowError e) {
+                err.println("jlox: " + e);
+                status = 70;
+            }
+            out.flush();
+            err.flush();
+
+            synchronized (response) {
+                response.writeByte(EXIT);
+                response.writeInt(status);
+                response.flush();
+            }
+        } catch (IOException e) {
+            // the client went away; nothing left to report to
+        }
+    }
+
+    // each write becomes one tagged frame on the shared response stream
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream response;
+        private final byte tag;
+
+        FrameOutputStream(DataOutputStream response, byte tag) {
+            this.response = response;
+            this.tag = tag;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0)
+                return;
+            synchronized (response) {
+                response.writeByte(tag);
+                response.writeInt(length);
+                response.write(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (response) {
+                response.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package jlox;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// A thread with stack for a given depth of Lox calls. Every Lox call nests a
+// dozen or so Java frames, so a program recursing to Interpreter.maxDepth needs
+// far more than the JVM's default thread stack. Whatever runs Lox code (a
+// CompiledScript, the script engine) hands it to run(), which runs it on the
+// calling thread if that's a LoxThread with room enough, or else on one from a
+// pool and waits for it. Embedders can then call in from any thread.
+final class LoxThread extends Thread {
+    // idle threads of each stack size, kept for the next script
+    private static final Map<Long, ExecutorService> POOLS = new ConcurrentHashMap<>();
+
+    private final long stackSize;
+
+    private LoxThread(Runnable task, long stackSize) {
+        super(null, task, "jlox-" + stackSize / 1024 + "k", stackSize);
+        this.stackSize = stackSize;
+        setDaemon(true);
+    }
+
+    interface Task<T> {
+        T run();
+    }
+
+    // the result of the task, run with stack for maxDepth Lox calls. Runtime
+    // exceptions and errors from the task are thrown here.
+    static <T> T run(int maxDepth, Task<T> task) {
+        long stackSize = Interpreter.stackSize(maxDepth);
+        Thread current = Thread.currentThread();
+        if (current instanceof LoxThread && ((LoxThread) current).stackSize >= stackSize)
+            return task.run();
+
+        ExecutorService pool = POOLS.computeIfAbsent(stackSize,
+                size -> Executors.newCachedThreadPool(runnable -> new LoxThread(runnable, size)));
+        Future<T> result = pool.submit(task::run);
+        // the task holds the caller's context, so it's waited for even if the
+        // caller is interrupted
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    return result.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            if (interrupted)
+                current.interrupt();
+        }
+    }
+}
@@ -0,0 +1,1377 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// The second execution tier. NodeCompiler turns a hot function body or loop
+// into a tree of these, with every variable already resolved to a depth,
+// every operator already picked and no visitor dispatch in between. Nodes read
+// and write the same Environments the Interpreter does, so either tier can
+// pick up where the other left off.
+//
+// Expression nodes evaluate to a value. Statement nodes return NORMAL when
+// they complete, or the value of a return statement, instead of throwing.
+abstract class Node {
+    static final Object NORMAL = new Object();
+
+    abstract Object eval(Environment environment);
+
+    // for an expression known to be a number (see TypeInference). Unboxed
+    // nodes override it so the numbers they pass each other stay doubles.
+    double number(Environment environment) {
+        return Numbers.toDouble(eval(environment));
+    }
+
+    // for the condition of an if or a while. Comparisons override it so they
+    // don't box the boolean they branch on.
+    boolean test(Environment environment) {
+        return Interpreter.isTruthy(eval(environment));
+    }
+
+    abstract static class Statement {
+        abstract Object exec(Environment environment);
+    }
+
+    // A compiled function body or loop, run by the interpreter it was compiled
+    // for. It stays valid until one of its speculations fails.
+    static final class Unit {
+        final NodeCompiler compiler;
+        Statement[] statements;
+        boolean valid = true;
+
+        Unit(NodeCompiler compiler) {
+            this.compiler = compiler;
+        }
+
+        Object run(Environment environment) {
+            return execute(statements, environment);
+        }
+
+        // the expression behaved differently than this unit assumed. The caller
+        // still gets a correct result, but the next run goes back to the
+        // interpreter and a later compile won't assume it again.
+        void deoptimize(Expr expr) {
+            valid = false;
+            compiler.deoptimize(this, expr);
+        }
+    }
+
+    static Object execute(Statement[] statements, Environment environment) {
+        for (Statement statement : statements) {
+            Object result = statement.exec(environment);
+            if (result != NORMAL)
+                return result;
+        }
+        return NORMAL;
+    }
+
+    static final class Constant extends Node {
+        private final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            return value;
+        }
+    }
+
+    static final class Local extends Node {
+        private final int depth;
+        private final String name;
+
+        Local(int depth, String name) {
+            this.depth = depth;
+            this.name = name;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            for (int i = 0; i < depth; i++) {
+                environment = environment.enclosing;
+            }
+            Object value = environment.values.get(name);
+            if (value instanceof Box)
+                return ((Box) value).value;
+            return value;
+        }
+    }
+
+    static final class Global extends Node {
+        private final Environment globals;
+        private final Environment.Global cell;
+        private final Token name;
+
+        Global(Environment globals, Token name) {
+            this.globals = globals;
+            this.cell = globals.cell(name.lexeme);
+            this.name = name;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            if (cell.defined)
+                return cell.value;
+            return globals.get(cell, name); // throws
+        }
+    }
+
+    static final class AssignLocal extends Node {
+        private final int depth;
+        private final String name;
+        private final Node value;
+
+        AssignLocal(int depth, String name, Node value) {
+            this.depth = depth;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object result = value.eval(environment);
+            for (int i = 0; i < depth; i++) {
+                environment = environment.enclosing;
+            }
+            Object current = environment.values.get(name);
+            if (current instanceof Box)
+                ((Box) current).value = result;
+            else
+                environment.values.put(name, result);
+            return result;
+        }
+    }
+
+    static final class AssignGlobal extends Node {
+        private final Environment globals;
+        private final Environment.Global cell;
+        private final Token name;
+        private final Node value;
+
+        AssignGlobal(Environment globals, Token name, Node value) {
+            this.globals = globals;
+            this.cell = globals.cell(name.lexeme);
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object result = value.eval(environment);
+            globals.assign(cell, name, result);
+            return result;
+        }
+    }
+
+    static final class And extends Node {
+        private final Node left;
+        private final Node right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object value = left.eval(environment);
+            if (!Interpreter.isTruthy(value))
+                return value;
+            return right.eval(environment);
+        }
+    }
+
+    static final class Or extends Node {
+        private final Node left;
+        private final Node right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object value = left.eval(environment);
+            if (Interpreter.isTruthy(value))
+                return value;
+            return right.eval(environment);
+        }
+    }
+
+    static final class Negate extends Node {
+        private final Token operator;
+        private final Node right;
+
+        Negate(Token operator, Node right) {
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object value = right.eval(environment);
+            if (Numbers.isNumber(value))
+                return Numbers.negate(value);
+            throw new RuntimeError(operator, "Operand must be a number.");
+        }
+    }
+
+    static final class Not extends Node {
+        private final Node right;
+
+        Not(Node right) {
+            this.right = right;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            return !Interpreter.isTruthy(right.eval(environment));
+        }
+    }
+
+    // evaluates its operands for their side effects and yields nil, like the
+    // interpreter does for operators it doesn't know
+    static final class Discard extends Node {
+        private final Node[] operands;
+
+        Discard(Node... operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            for (Node operand : operands) {
+                operand.eval(environment);
+            }
+            return null;
+        }
+    }
+
+    // + speculating that both operands are numbers
+    static final class AddNumbers extends Node {
+        private final Unit unit;
+        private final Expr.Binary expr;
+        private final Add generic;
+
+        AddNumbers(Unit unit, Expr.Binary expr, Add generic) {
+            this.unit = unit;
+            this.expr = expr;
+            this.generic = generic;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object left = generic.left.eval(environment);
+            Object right = generic.right.eval(environment);
+            if (Numbers.isNumber(left) && Numbers.isNumber(right))
+                return Numbers.add(left, right);
+
+            unit.deoptimize(expr);
+            if (generic.interpreter.profiler != null)
+                generic.interpreter.profiler.binary(expr, left, right);
+            return generic.apply(left, right);
+        }
+    }
+
+    static final class Add extends Node {
+        final Interpreter interpreter;
+        private final Token operator;
+        final Node left;
+        final Node right;
+
+        Add(Interpreter interpreter, Node left, Token operator, Node right) {
+            this.interpreter = interpreter;
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            return apply(left.eval(environment), right.eval(environment));
+        }
+
+        Object apply(Object left, Object right) {
+            if (Numbers.isNumber(left) && Numbers.isNumber(right))
+                return Numbers.add(left, right);
+            if (Rope.isString(left) && Rope.isString(right))
+                return interpreter.concatenate(operator, (CharSequence) left, (CharSequence) right);
+            throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+        }
+    }
+
+    // the operators that only take numbers
+    abstract static class Arithmetic extends Node {
+        private final Token operator;
+        final Node left;
+        final Node right;
+
+        Arithmetic(Node left, Token operator, Node right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        final RuntimeError error() {
+            return new RuntimeError(operator, "Operands must be numbers.");
+        }
+    }
+
+    static final class Subtract extends Arithmetic {
+        Subtract(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object a = left.eval(environment);
+            Object b = right.eval(environment);
+            if (Numbers.isNumber(a) && Numbers.isNumber(b))
+                return Numbers.subtract(a, b);
+            throw error();
+        }
+    }
+
+    static final class Multiply extends Arithmetic {
+        Multiply(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object a = left.eval(environment);
+            Object b = right.eval(environment);
+            if (Numbers.isNumber(a) && Numbers.isNumber(b))
+                return Numbers.multiply(a, b);
+            throw error();
+        }
+    }
+
+    static final class Divide extends Arithmetic {
+        Divide(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object a = left.eval(environment);
+            Object b = right.eval(environment);
+            if (Numbers.isNumber(a) && Numbers.isNumber(b))
+                return Numbers.divide(a, b);
+            throw error();
+        }
+    }
+
+    static final class Modulo extends Arithmetic {
+        Modulo(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object a = left.eval(environment);
+            Object b = right.eval(environment);
+            if (Numbers.isNumber(a) && Numbers.isNumber(b))
+                return Numbers.modulo(a, b);
+            throw error();
+        }
+    }
+
+    static final class Greater extends Arithmetic {
+        Greater(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object a = left.eval(environment);
+            Object b = right.eval(environment);
+            if (Numbers.isNumber(a) && Numbers.isNumber(b))
+                return Numbers.greater(a, b);
+            throw error();
+        }
+    }
+
+    static final class GreaterEqual extends Arithmetic {
+        GreaterEqual(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object a = left.eval(environment);
+            Object b = right.eval(environment);
+            if (Numbers.isNumber(a) && Numbers.isNumber(b))
+                return Numbers.greaterEqual(a, b);
+            throw error();
+        }
+    }
+
+    static final class Less extends Arithmetic {
+        Less(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object a = left.eval(environment);
+            Object b = right.eval(environment);
+            if (Numbers.isNumber(a) && Numbers.isNumber(b))
+                return Numbers.less(a, b);
+            throw error();
+        }
+    }
+
+    static final class LessEqual extends Arithmetic {
+        LessEqual(Node left, Token operator, Node right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object a = left.eval(environment);
+            Object b = right.eval(environment);
+            if (Numbers.isNumber(a) && Numbers.isNumber(b))
+                return Numbers.lessEqual(a, b);
+            throw error();
+        }
+    }
+
+    // arithmetic on operands that are known to be numbers, which can't fail
+    abstract static class Unboxed extends Node {
+        final Node left;
+        final Node right;
+
+        Unboxed(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        final Object eval(Environment environment) {
+            return number(environment);
+        }
+    }
+
+    static final class UnboxedAdd extends Unboxed {
+        UnboxedAdd(Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override
+        double number(Environment environment) {
+            return left.number(environment) + right.number(environment);
+        }
+    }
+
+    static final class UnboxedSubtract extends Unboxed {
+        UnboxedSubtract(Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override
+        double number(Environment environment) {
+            return left.number(environment) - right.number(environment);
+        }
+    }
+
+    static final class UnboxedMultiply extends Unboxed {
+        UnboxedMultiply(Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override
+        double number(Environment environment) {
+            return left.number(environment) * right.number(environment);
+        }
+    }
+
+    static final class UnboxedDivide extends Unboxed {
+        UnboxedDivide(Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override
+        double number(Environment environment) {
+            return left.number(environment) / right.number(environment);
+        }
+    }
+
+    static final class UnboxedModulo extends Unboxed {
+        UnboxedModulo(Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override
+        double number(Environment environment) {
+            return left.number(environment) % right.number(environment);
+        }
+    }
+
+    static final class UnboxedNegate extends Node {
+        private final Node right;
+
+        UnboxedNegate(Node right) {
+            this.right = right;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            return -right.number(environment);
+        }
+
+        @Override
+        double number(Environment environment) {
+            return -right.number(environment);
+        }
+    }
+
+    // comparisons of operands that are known to be numbers
+    abstract static class Comparison extends Node {
+        final Node left;
+        final Node right;
+
+        Comparison(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    static final class UnboxedGreater extends Comparison {
+        UnboxedGreater(Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            return test(environment);
+        }
+
+        @Override
+        boolean test(Environment environment) {
+            return left.number(environment) > right.number(environment);
+        }
+    }
+
+    static final class UnboxedGreaterEqual extends Comparison {
+        UnboxedGreaterEqual(Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            return test(environment);
+        }
+
+        @Override
+        boolean test(Environment environment) {
+            return left.number(environment) >= right.number(environment);
+        }
+    }
+
+    static final class UnboxedLess extends Comparison {
+        UnboxedLess(Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            return test(environment);
+        }
+
+        @Override
+        boolean test(Environment environment) {
+            return left.number(environment) < right.number(environment);
+        }
+    }
+
+    static final class UnboxedLessEqual extends Comparison {
+        UnboxedLessEqual(Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            return test(environment);
+        }
+
+        @Override
+        boolean test(Environment environment) {
+            return left.number(environment) <= right.number(environment);
+        }
+    }
+
+    // A variable that a fused node reads or writes itself, rather than through
+    // a Local or Global node. It's final, so the JIT can inline it into the
+    // node.
+    static final class Variable {
+        private final Environment globals;
+        private final Environment.Global cell; // null for a local
+        private final int depth;
+        private final Token name;
+
+        // a local, at the given depth
+        Variable(int depth, Token name) {
+            this.globals = null;
+            this.cell = null;
+            this.depth = depth;
+            this.name = name;
+        }
+
+        Variable(Environment globals, Token name) {
+            this.globals = globals;
+            this.cell = globals.cell(name.lexeme);
+            this.depth = -1;
+            this.name = name;
+        }
+
+        Object get(Environment environment) {
+            if (cell != null)
+                return cell.defined ? cell.value : globals.get(cell, name);
+
+            for (int i = 0; i < depth; i++) {
+                environment = environment.enclosing;
+            }
+            Object value = environment.values.get(name.lexeme);
+            if (value instanceof Box)
+                return ((Box) value).value;
+            return value;
+        }
+
+        void set(Environment environment, Object value) {
+            if (cell != null) {
+                globals.assign(cell, name, value);
+                return;
+            }
+
+            for (int i = 0; i < depth; i++) {
+                environment = environment.enclosing;
+            }
+            Object current = environment.values.get(name.lexeme);
+            if (current instanceof Box)
+                ((Box) current).value = value;
+            else
+                environment.values.put(name.lexeme, value);
+        }
+    }
+
+    // `i = i + 1`, `i += 1` and the same with -: a variable plus a number,
+    // read, added and written back in one node
+    static final class Increment extends Node {
+        private final Variable variable;
+        private final Token operator;
+        private final Object delta;
+        private final boolean plus;
+
+        Increment(Variable variable, Token operator, Object delta) {
+            this.variable = variable;
+            this.operator = operator;
+            this.delta = delta;
+            this.plus = operator.type == TokenType.PLUS || operator.type == TokenType.PLUSEQUALS;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object value = variable.get(environment);
+            if (!Numbers.isNumber(value)) {
+                if (plus)
+                    throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+                throw new RuntimeError(operator, "Operands must be numbers.");
+            }
+
+            Object result = plus ? Numbers.add(value, delta) : Numbers.subtract(value, delta);
+            variable.set(environment, result);
+            return result;
+        }
+    }
+
+    // `i < n` and the other comparisons, of a variable with another variable or
+    // a number
+    static final class CompareVariables extends Node {
+        private final Variable left;
+        private final Token operator;
+        private final Variable right; // null to compare with constant
+        private final Object constant;
+
+        CompareVariables(Variable left, Token operator, Variable right, Object constant) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+            this.constant = constant;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            return test(environment);
+        }
+
+        @Override
+        boolean test(Environment environment) {
+            Object a = left.get(environment);
+            Object b = right == null ? constant : right.get(environment);
+            if (!Numbers.isNumber(a) || !Numbers.isNumber(b))
+                throw new RuntimeError(operator, "Operands must be numbers.");
+
+            switch (operator.type) {
+                case GREATER:
+                    return Numbers.greater(a, b);
+                case GREATER_EQUAL:
+                    return Numbers.greaterEqual(a, b);
+                case LESS:
+                    return Numbers.less(a, b);
+                default:
+                    return Numbers.lessEqual(a, b);
+            }
+        }
+    }
+
+    // `x % k == c` and `x % k != c`, for numbers k and c
+    static final class ModuloEquals extends Node {
+        private final Node left;
+        private final Token operator;
+        private final Object divisor;
+        private final Object expected;
+        private final boolean negated;
+
+        ModuloEquals(Node left, Token operator, Object divisor, Object expected, boolean negated) {
+            this.left = left;
+            this.operator = operator;
+            this.divisor = divisor;
+            this.expected = expected;
+            this.negated = negated;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            return test(environment);
+        }
+
+        @Override
+        boolean test(Environment environment) {
+            Object value = left.eval(environment);
+            if (!Numbers.isNumber(value))
+                throw new RuntimeError(operator, "Operands must be numbers.");
+            return Numbers.equal(Numbers.modulo(value, divisor), expected) != negated;
+        }
+    }
+
+    // the variable of a counted loop, which the loop keeps here while it runs:
+    // in integer while it's an integer, in value once it isn't
+    static final class Counter {
+        boolean integral;
+        long integer;
+        double value;
+
+        Object get() {
+            if (integral)
+                return integer;
+            return value;
+        }
+    }
+
+    // a read of a counted loop's variable
+    static final class CounterValue extends Node {
+        private final Counter counter;
+
+        CounterValue(Counter counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            return counter.get();
+        }
+
+        @Override
+        double number(Environment environment) {
+            return counter.integral ? counter.integer : counter.value;
+        }
+    }
+
+    // `while (i < bound) { body; i = i + k; }`, which is how a for loop is
+    // parsed, where nothing but the increment changes i (see
+    // InductionVariable). i lives in the Counter while the loop runs, and goes
+    // back into its environment when the loop is done. A call in the body may
+    // run the loop again before it's done, so a run puts back the count of the
+    // one it interrupted.
+    //
+    // i counts in a long while it and k are integers, and moves to a double if
+    // it overflows, as Numbers.add() would.
+    static final class CountedLoop extends Statement {
+        private final Variable variable;
+        private final Counter counter;
+        private final Token operator;
+        private final Node bound;
+        private final Statement body;
+        private final Object step;
+
+        CountedLoop(Variable variable, Counter counter, Token operator, Node bound, Statement body, Object step) {
+            this.variable = variable;
+            this.counter = counter;
+            this.operator = operator;
+            this.bound = bound;
+            this.body = body;
+            this.step = step;
+        }
+
+        @Override
+        Object exec(Environment environment) {
+            Object start = variable.get(environment);
+            if (!Numbers.isNumber(start)) {
+                bound.eval(environment);
+                throw new RuntimeError(operator, "Operands must be numbers.");
+            }
+
+            boolean enclosingIntegral = counter.integral;
+            long enclosingInteger = counter.integer;
+            double enclosingValue = counter.value;
+            counter.integral = start instanceof Long && step instanceof Long;
+            if (counter.integral)
+                counter.integer = (long) start;
+            else
+                counter.value = Numbers.toDouble(start);
+            try {
+                for (;;) {
+                    Object limit = bound.eval(environment);
+                    if (!Numbers.isNumber(limit))
+                        throw new RuntimeError(operator, "Operands must be numbers.");
+                    if (!more(limit))
+                        return NORMAL;
+
+                    Object result = body.exec(environment);
+                    if (result != NORMAL)
+                        return result;
+                    advance();
+                }
+            } finally {
+                variable.set(environment, counter.get());
+                counter.integral = enclosingIntegral;
+                counter.integer = enclosingInteger;
+                counter.value = enclosingValue;
+            }
+        }
+
+        private boolean more(Object limit) {
+            if (counter.integral && limit instanceof Long)
+                return compare(counter.integer, (long) limit);
+            return compare(counter.integral ? counter.integer : counter.value, Numbers.toDouble(limit));
+        }
+
+        private void advance() {
+            if (!counter.integral) {
+                counter.value += Numbers.toDouble(step);
+                return;
+            }
+            try {
+                counter.integer = Math.addExact(counter.integer, (long) step);
+            } catch (ArithmeticException e) {
+                counter.integral = false;
+                counter.value = (double) counter.integer + (long) step;
+            }
+        }
+
+        private boolean compare(long i, long limit) {
+            switch (operator.type) {
+                case GREATER:
+                    return i > limit;
+                case GREATER_EQUAL:
+                    return i >= limit;
+                case LESS:
+                    return i < limit;
+                default:
+                    return i <= limit;
+            }
+        }
+
+        private boolean compare(double i, double limit) {
+            switch (operator.type) {
+                case GREATER:
+                    return i > limit;
+                case GREATER_EQUAL:
+                    return i >= limit;
+                case LESS:
+                    return i < limit;
+                default:
+                    return i <= limit;
+            }
+        }
+    }
+
+    static final class Equal extends Node {
+        private final Node left;
+        private final Node right;
+        private final boolean negated;
+
+        Equal(Node left, Node right, boolean negated) {
+            this.left = left;
+            this.right = right;
+            this.negated = negated;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object a = left.eval(environment);
+            Object b = right.eval(environment);
+            return Interpreter.isEqual(a, b) != negated;
+        }
+    }
+
+    static final class Call extends Node {
+        private final Interpreter interpreter;
+        private final Node callee;
+        private final Token paren;
+        private final Node[] arguments;
+        private final boolean tail; // hands back a TailCall instead of calling a LoxFunction
+
+        Call(Interpreter interpreter, Node callee, Token paren, Node[] arguments, boolean tail) {
+            this.interpreter = interpreter;
+            this.callee = callee;
+            this.paren = paren;
+            this.arguments = arguments;
+            this.tail = tail;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            return call(callee.eval(environment), environment);
+        }
+
+        // the call, once the callee has been evaluated
+        Object call(Object target, Environment environment) {
+            List<Object> values = new ArrayList<>(arguments.length);
+            for (Node argument : arguments) {
+                values.add(argument.eval(environment));
+            }
+
+            if (!(target instanceof LoxCallable)) {
+                throw new RuntimeError(paren, "Can only call functions and classes");
+            }
+            LoxCallable function = (LoxCallable) target;
+
+            if (values.size() != function.arity()) {
+                throw new RuntimeError(paren,
+                        "Expected " + function.arity() + " arguments but got " + values.size() + ".");
+            }
+            if (tail && function instanceof LoxFunction)
+                return new TailCall((LoxFunction) function, values);
+
+            interpreter.callSite = paren;
+            Object result = function.call(interpreter, values);
+            if (interpreter.allocations != null && function instanceof LoxClass)
+                interpreter.allocations.instance(paren, (LoxClass) function, (LoxInstance) result);
+            return result;
+        }
+    }
+
+    // a call that runs the body of a small function (see Inliner) in place,
+    // for as long as the callee is the function it first saw. The guard is on
+    // the declaration, so it holds for every closure of a local function but
+    // not for another function assigned or declared under the same name, which
+    // goes through an ordinary call instead.
+    static final class Inline extends Node {
+        private final Interpreter interpreter;
+        private final Node callee;
+        private final Token paren;
+        private final Node[] arguments;
+        private final Call call;
+        private Stmt.Function expected = null;
+        private Unit body = null; // null if expected can't be inlined
+
+        Inline(Interpreter interpreter, Node callee, Token paren, Node[] arguments, Call call) {
+            this.interpreter = interpreter;
+            this.callee = callee;
+            this.paren = paren;
+            this.arguments = arguments;
+            this.call = call;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object target = callee.eval(environment);
+            if (!(target instanceof LoxFunction) || LoxEvents.ENABLED)
+                return call.call(target, environment);
+
+            LoxFunction function = (LoxFunction) target;
+            if (expected == null) {
+                expected = function.declaration;
+                body = interpreter.compiler.inline(function, arguments.length);
+            } else if (function.declaration == expected && body != null && !body.valid) {
+                // compiled again without the speculation that failed
+                body = interpreter.compiler.inline(function, arguments.length);
+            }
+            if (function.declaration != expected || body == null)
+                return call.call(target, environment);
+
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = arguments[i].eval(environment);
+            }
+            return run(function, values);
+        }
+
+        // what LoxFunction.call() does, for a body that makes no calls
+        private Object run(LoxFunction function, Object[] values) {
+            if (interpreter.depth >= interpreter.maxDepth)
+                throw new RuntimeError(paren, "Stack overflow.");
+            interpreter.depth++;
+            try {
+                Environment frame = interpreter.frame(function.closure);
+                List<Token> params = expected.params;
+                for (int i = 0; i < values.length; i++) {
+                    frame.define(params.get(i).lexeme, values[i]);
+                }
+                Object result = body.run(frame);
+                return result == NORMAL ? null : result;
+            } catch (RuntimeError error) {
+                error.unwind(expected.name.lexeme, paren);
+                throw error;
+            } finally {
+                interpreter.release();
+                interpreter.depth--;
+            }
+        }
+    }
+
+    static final class Get extends Node {
+        private final Node object;
+        private final Token name;
+
+        Get(Node object, Token name) {
+            this.object = object;
+            this.name = name;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object value = object.eval(environment);
+            if (value instanceof LoxInstance)
+                return ((LoxInstance) value).get(name);
+
+            throw new RuntimeError(name, "Only instances have properties.");
+        }
+    }
+
+    // a get that remembers the method it found on the last class it saw
+    static final class CachedGet extends Node {
+        private final Node object;
+        private final Token name;
+        private LoxClass cachedClass = null;
+        private LoxFunction cachedMethod = null;
+
+        CachedGet(Node object, Token name) {
+            this.object = object;
+            this.name = name;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object value = object.eval(environment);
+            if (!(value instanceof LoxInstance))
+                throw new RuntimeError(name, "Only instances have properties.");
+
+            LoxInstance instance = (LoxInstance) value;
+            if (instance.klass == cachedClass && !instance.fields.containsKey(name.lexeme))
+                return cachedMethod.bind(instance);
+
+            Object property = instance.get(name);
+            if (!instance.fields.containsKey(name.lexeme)) {
+                cachedClass = instance.klass;
+                cachedMethod = instance.klass.findMethod(name.lexeme);
+            }
+            return property;
+        }
+    }
+
+    static final class Set extends Node {
+        private final Node object;
+        private final Token name;
+        private final Node value;
+
+        Set(Node object, Token name, Node value) {
+            this.object = object;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object target = object.eval(environment);
+            if (!(target instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            Object result = value.eval(environment);
+            ((LoxInstance) target).set(name, result);
+            return result;
+        }
+    }
+
+    static final class Evaluate extends Statement {
+        private final Node expression;
+
+        Evaluate(Node expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        Object exec(Environment environment) {
+            expression.eval(environment);
+            return NORMAL;
+        }
+    }
+
+    static final class Print extends Statement {
+        private final Interpreter interpreter;
+        private final Node expression;
+
+        Print(Interpreter interpreter, Node expression) {
+            this.interpreter = interpreter;
+            this.expression = expression;
+        }
+
+        @Override
+        Object exec(Environment environment) {
+            interpreter.print(expression.eval(environment));
+            return NORMAL;
+        }
+    }
+
+    static final class Define extends Statement {
+        private final String name;
+        private final Node initializer;
+
+        Define(String name, Node initializer) {
+            this.name = name;
+            this.initializer = initializer;
+        }
+
+        @Override
+        Object exec(Environment environment) {
+            environment.define(name, initializer == null ? null : initializer.eval(environment));
+            return NORMAL;
+        }
+    }
+
+    // `var p = C();` and the rest of its block, for an instance that never
+    // escapes (see EscapeAnalysis). When C is a class the instance isn't made,
+    // and the rest runs a copy that keeps p.field in a local named "p.field".
+    // Otherwise the call is made as usual and the rest runs unchanged.
+    static final class ScalarReplace extends Statement {
+        private final Interpreter interpreter;
+        private final String name;
+        private final Node callee;
+        private final Token paren;
+        private final Statement[] replaced;
+        private final Statement[] original;
+
+        ScalarReplace(Interpreter interpreter, String name, Node callee, Token paren, Statement[] replaced,
+                Statement[] original) {
+            this.interpreter = interpreter;
+            this.name = name;
+            this.callee = callee;
+            this.paren = paren;
+            this.replaced = replaced;
+            this.original = original;
+        }
+
+        @Override
+        Object exec(Environment environment) {
+            Object target = callee.eval(environment);
+            if (target instanceof LoxClass)
+                return execute(replaced, environment);
+
+            if (!(target instanceof LoxCallable)) {
+                throw new RuntimeError(paren, "Can only call functions and classes");
+            }
+            LoxCallable function = (LoxCallable) target;
+
+            if (function.arity() != 0) {
+                throw new RuntimeError(paren, "Expected " + function.arity() + " arguments but got 0.");
+            }
+            interpreter.callSite = paren;
+            environment.define(name, function.call(interpreter, new ArrayList<>(0)));
+            return execute(original, environment);
+        }
+    }
+
+    static final class Block extends Statement {
+        private final Statement[] statements;
+
+        Block(Statement[] statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        Object exec(Environment environment) {
+            return execute(statements, new Environment(environment));
+        }
+    }
+
+    static final class If extends Statement {
+        private final Node condition;
+        private final Statement thenBranch;
+        private final Statement elseBranch;
+
+        If(Node condition, Statement thenBranch, Statement elseBranch) {
+            this.condition = condition;
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        Object exec(Environment environment) {
+            if (condition.test(environment))
+                return thenBranch.exec(environment);
+            if (elseBranch != null)
+                return elseBranch.exec(environment);
+            return NORMAL;
+        }
+    }
+
+    static final class While extends Statement {
+        private final Node condition;
+        private final Statement body;
+
+        While(Node condition, Statement body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        Object exec(Environment environment) {
+            while (condition.test(environment)) {
+                Object result = body.exec(environment);
+                if (result != NORMAL)
+                    return result;
+            }
+            return NORMAL;
+        }
+    }
+
+    // where a region's shared expressions keep their values while it runs (see
+    // CommonExpressions)
+    static final class Slots {
+        static final Object UNSET = new Object();
+
+        int size = 0;
+        Object[] values;
+    }
+
+    // a pure expression that is worked out once per run of its region
+    static final class Reuse extends Node {
+        private final Slots slots;
+        private final int slot;
+        private final Node expression;
+
+        Reuse(Slots slots, int slot, Node expression) {
+            this.slots = slots;
+            this.slot = slot;
+            this.expression = expression;
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Object[] values = slots.values;
+            Object value = values[slot];
+            if (value != Slots.UNSET)
+                return value;
+
+            value = expression.eval(environment);
+            // a get of a method binds a new function every time
+            if (!(value instanceof LoxFunction))
+                values[slot] = value;
+            return value;
+        }
+    }
+
+    // a loop with loop-invariant expressions. Each run of it starts with fresh
+    // slots, and puts back the ones of the run it interrupted, if a call in the
+    // loop got back here.
+    static final class Hoist extends Statement {
+        private final Slots slots;
+        private final Statement loop;
+
+        Hoist(Slots slots, Statement loop) {
+            this.slots = slots;
+            this.loop = loop;
+        }
+
+        @Override
+        Object exec(Environment environment) {
+            Object[] enclosing = slots.values;
+            slots.values = new Object[slots.size];
+            Arrays.fill(slots.values, Slots.UNSET);
+            try {
+                return loop.exec(environment);
+            } finally {
+                slots.values = enclosing;
+            }
+        }
+    }
+
+    // a statement's expression with common subexpressions. It makes no calls,
+    // so it's never evaluated again before it's done and the slots can be
+    // reused.
+    static final class Common extends Node {
+        private final Slots slots;
+        private final Node expression;
+
+        Common(Slots slots, Node expression) {
+            this.slots = slots;
+            this.expression = expression;
+            slots.values = new Object[slots.size];
+        }
+
+        @Override
+        Object eval(Environment environment) {
+            Arrays.fill(slots.values, Slots.UNSET);
+            return expression.eval(environment);
+        }
+    }
+
+    static final class Return extends Statement {
+        private final Node value;
+
+        Return(Node value) {
+            this.value = value;
+        }
+
+        @Override
+        Object exec(Environment environment) {
+            return value == null ? null : value.eval(environment);
+        }
+    }
+
+    // a function or class declaration, which the interpreter still evaluates.
+    // The functions it creates start out in the interpreter like any other.
+    static final class Declare extends Statement {
+        private final Interpreter interpreter;
+        private final List<Stmt> declaration;
+        private final Map<Expr, Integer> locals;
+        private final Map<Stmt.Function, List<Resolver.Capture>> captures;
+        private final Map<Expr, TypeInference.Type> types;
+        private final java.util.Set<Expr.Call> tailCalls;
+
+        Declare(Interpreter interpreter, Stmt declaration, Map<Expr, Integer> locals,
+                Map<Stmt.Function, List<Resolver.Capture>> captures, Map<Expr, TypeInference.Type> types,
+                java.util.Set<Expr.Call> tailCalls) {
+            this.interpreter = interpreter;
+            this.declaration = List.of(declaration);
+            this.locals = locals;
+            this.captures = captures;
+            this.types = types;
+            this.tailCalls = tailCalls;
+        }
+
+        @Override
+        Object exec(Environment environment) {
+            interpreter.executeBlock(declaration, environment, locals, captures, types, tailCalls);
+            return NORMAL;
+        }
+    }
+}
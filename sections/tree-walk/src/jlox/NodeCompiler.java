@@ -0,0 +1,678 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// Promotes hot code from the Interpreter to the node tier (see Node). A
+// function is compiled once it has been called CALL_THRESHOLD times, and a
+// loop still running after LOOP_THRESHOLD iterations is compiled and finishes
+// in the node tier from the iteration it was on (on-stack replacement).
+//
+// Compiled code is specialized on what has been seen so far: + is assumed to
+// add numbers until it meets a string. When an assumption fails the unit is
+// thrown away, the code goes back to the interpreter, and it is compiled again
+// later without that assumption.
+//
+// Instances that never leave the code creating them aren't created at all in
+// compiled code: their fields become locals instead (see EscapeAnalysis and
+// Node.ScalarReplace).
+//
+// Pure expressions that a loop can't change are worked out once per run of the
+// loop, and ones written twice in a statement once per run of the statement
+// (see CommonExpressions).
+//
+// Common shapes are fused into one node that does the work of several:
+// `i = i + 1` and `i += 1`, a comparison of two variables or of a variable
+// with a number, and `x % k == c`.
+//
+// Operators whose operands TypeInference proved to be numbers, one of them a
+// double, are compiled without type checks, and pass doubles to each other
+// unboxed.
+//
+// Calls to small functions run the compiled body of the function in place,
+// guarded on the function still being the one they first called (see Inliner
+// and Node.Inline).
+//
+// One compiler per Interpreter, so none of this is shared between threads.
+class NodeCompiler implements Expr.Visitor<Node>, Stmt.Visitor<Node.Statement> {
+    // -Djlox.tiering=false keeps everything in the interpreter
+    static final boolean ENABLED = !"false".equals(System.getProperty("jlox.tiering"));
+    static final int CALL_THRESHOLD = Integer.getInteger("jlox.callThreshold", 1000);
+    static final int LOOP_THRESHOLD = Integer.getInteger("jlox.loopThreshold", 10000);
+    // -Djlox.scalarReplacement=false allocates every instance
+    static final boolean SCALAR_REPLACEMENT = !"false".equals(System.getProperty("jlox.scalarReplacement"));
+    // -Djlox.inlining=false calls every function, and -Djlox.inlineSize is the
+    // largest body, in syntax tree nodes, that is inlined
+    static final boolean INLINING = !"false".equals(System.getProperty("jlox.inlining"));
+    static final int INLINE_SIZE = Integer.getInteger("jlox.inlineSize", 24);
+    // -Djlox.unboxing=false checks the operands of every operator
+    static final boolean UNBOXING = !"false".equals(System.getProperty("jlox.unboxing"));
+    // -Djlox.superinstructions=false compiles every operator on its own
+    static final boolean SUPERINSTRUCTIONS = !"false".equals(System.getProperty("jlox.superinstructions"));
+    // -Djlox.countedLoops=false keeps the variable of a for loop in its
+    // environment
+    static final boolean COUNTED_LOOPS = !"false".equals(System.getProperty("jlox.countedLoops"));
+    // -Djlox.commonExpressions=false computes every expression where it's written
+    static final boolean COMMON_EXPRESSIONS = !"false".equals(System.getProperty("jlox.commonExpressions"));
+
+    // the call counter of a function, shared with the copies bind() makes of it
+    static final class Profile {
+        int calls = 0;
+        int threshold = CALL_THRESHOLD;
+        Node.Unit unit = null;
+    }
+
+    private final Interpreter interpreter;
+    private final Map<Stmt.Function, Node.Unit> functions = new IdentityHashMap<>();
+    private final Map<Stmt.While, Node.Unit> loops = new IdentityHashMap<>();
+    // expressions whose speculation failed once already
+    private final Set<Expr> unstable = Collections.newSetFromMap(new IdentityHashMap<>());
+    // hints from a Profiler: code compiled on first use, and gets that only
+    // ever see one class
+    private final Set<Object> hot = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<Expr.Get> monomorphic = Collections.newSetFromMap(new IdentityHashMap<>());
+    // whether each function that a call site has met can be inlined
+    private final Map<Stmt.Function, Boolean> inlinable = new IdentityHashMap<>();
+
+    // what is being compiled right now
+    private Node.Unit unit;
+    private Map<Expr, Integer> locals;
+    private Map<Stmt.Function, List<Resolver.Capture>> captures;
+    private Map<Expr, TypeInference.Type> types;
+    private Set<Expr.Call> tailCalls;
+    // references to variables whose instance was replaced by its fields
+    private final Set<Expr> replaced = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean replacing = false;
+    // the loops and statement being compiled that share expressions, outermost
+    // first, and the locals that closures assign
+    private List<Region> regions = new ArrayList<>();
+    private Set<String> captured;
+    private boolean sharing = false;
+    // the variables of the counted loops being compiled, by name
+    private Map<String, Node.Counter> counters = new HashMap<>();
+
+    private static final class Region {
+        final CommonExpressions analysis;
+        final int uses; // how often an expression must appear to be shared
+        final Node.Slots slots = new Node.Slots();
+        final Map<String, Integer> keys = new HashMap<>();
+
+        Region(CommonExpressions analysis, int uses) {
+            this.analysis = analysis;
+            this.uses = uses;
+        }
+
+        Integer slot(Expr expr) {
+            if (analysis.count(expr) < uses)
+                return null;
+            return keys.computeIfAbsent(analysis.key(expr), key -> slots.size++);
+        }
+    }
+
+    NodeCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    // the compiled body of a function, or null while it should stay in the
+    // interpreter. Called on every call of the function.
+    Node.Unit function(LoxFunction function) {
+        Profile profile = function.profile;
+        Node.Unit compiled = profile.unit;
+        if (compiled != null) {
+            if (compiled.valid && compiled.compiler == this)
+                return compiled;
+            if (!compiled.valid) {
+                // back off so code that keeps deoptimizing isn't compiled over and over
+                profile.unit = null;
+                profile.threshold *= 2;
+            }
+        }
+
+        // only calls made before the function tiers up are recorded, which is
+        // enough to tell that it's hot
+        if (interpreter.profiler != null)
+            interpreter.profiler.call(function.declaration);
+
+        if (!ENABLED)
+            return null;
+        if (++profile.calls < profile.threshold && (hot.isEmpty() || !hot.contains(function.declaration)))
+            return null;
+        profile.calls = 0;
+
+        compiled = functions.get(function.declaration);
+        if (compiled == null) {
+            compiled = compile(function.declaration.body, function.locals, function.captures, function.types,
+                    function.tailCalls, true);
+            functions.put(function.declaration, compiled);
+        }
+        profile.unit = compiled;
+        return compiled;
+    }
+
+    // the compiled body of a function, for a call site with the given number
+    // of arguments to run in place (see Node.Inline), or null if it can't
+    Node.Unit inline(LoxFunction function, int arguments) {
+        if (arguments != function.arity())
+            return null;
+        if (!inlinable.computeIfAbsent(function.declaration, declaration -> Inliner.inlinable(function, INLINE_SIZE)))
+            return null;
+
+        Node.Unit compiled = functions.get(function.declaration);
+        if (compiled == null) {
+            compiled = compile(function.declaration.body, function.locals, function.captures, function.types,
+                    function.tailCalls, true);
+            functions.put(function.declaration, compiled);
+        }
+        return compiled;
+    }
+
+    // the compiled form of a loop that has just run LOOP_THRESHOLD iterations in
+    // the interpreter, or that already has one
+    Node.Unit loop(Stmt.While loop, Map<Expr, Integer> resolved,
+            Map<Stmt.Function, List<Resolver.Capture>> captured, Map<Expr, TypeInference.Type> inferred,
+            Set<Expr.Call> tails) {
+        Node.Unit compiled = loops.get(loop);
+        if (compiled == null) {
+            compiled = compile(List.of(loop), resolved, captured, inferred, tails, false);
+            loops.put(loop, compiled);
+        }
+        return compiled;
+    }
+
+    // whether a loop should go straight to loop() when it's entered, because it
+    // was compiled already or is known to be hot
+    boolean isHot(Stmt.While loop) {
+        if (!loops.isEmpty() && loops.containsKey(loop))
+            return true;
+        return ENABLED && !hot.isEmpty() && hot.contains(loop);
+    }
+
+    void hot(Stmt.Function function) {
+        hot.add(function);
+    }
+
+    void hot(Stmt.While loop) {
+        hot.add(loop);
+    }
+
+    // whether an operator's operands are known to be numbers
+    private boolean isUnboxed(Expr expr) {
+        return UNBOXING && !types.isEmpty() && TypeInference.isUnboxed(types, expr);
+    }
+
+    void generic(Expr expr) {
+        unstable.add(expr);
+    }
+
+    void monomorphic(Expr.Get expr) {
+        monomorphic.add(expr);
+    }
+
+    void deoptimize(Node.Unit invalid, Expr expr) {
+        unstable.add(expr);
+        functions.values().remove(invalid);
+        loops.values().remove(invalid);
+    }
+
+    private Node.Unit compile(List<Stmt> statements, Map<Expr, Integer> resolved,
+            Map<Stmt.Function, List<Resolver.Capture>> captured, Map<Expr, TypeInference.Type> inferred,
+            Set<Expr.Call> tails, boolean local) {
+        Node.Unit enclosingUnit = unit;
+        Map<Expr, Integer> enclosingLocals = locals;
+        Map<Stmt.Function, List<Resolver.Capture>> enclosingCaptures = captures;
+        Map<Expr, TypeInference.Type> enclosingTypes = types;
+        Set<Expr.Call> enclosingTailCalls = tailCalls;
+        boolean enclosingReplacing = replacing;
+        List<Region> enclosingRegions = regions;
+        Set<String> enclosingCaptured = this.captured;
+        boolean enclosingSharing = sharing;
+        Map<String, Node.Counter> enclosingCounters = counters;
+        try {
+            unit = new Node.Unit(this);
+            locals = resolved;
+            captures = captured;
+            types = inferred;
+            tailCalls = tails;
+            // the tracker counts every instance and string the program makes
+            replacing = SCALAR_REPLACEMENT && interpreter.allocations == null;
+            sharing = COMMON_EXPRESSIONS && interpreter.allocations == null;
+            regions = new ArrayList<>();
+            this.captured = CommonExpressions.captured(captured.values());
+            counters = new HashMap<>();
+            unit.statements = compile(statements, local);
+            return unit;
+        } finally {
+            unit = enclosingUnit;
+            locals = enclosingLocals;
+            captures = enclosingCaptures;
+            types = enclosingTypes;
+            tailCalls = enclosingTailCalls;
+            replacing = enclosingReplacing;
+            regions = enclosingRegions;
+            this.captured = enclosingCaptured;
+            sharing = enclosingSharing;
+            counters = enclosingCounters;
+        }
+    }
+
+    // local is whether the statements declare local variables rather than globals
+    private Node.Statement[] compile(List<Stmt> statements, boolean local) {
+        List<Node.Statement> nodes = new ArrayList<>(statements.size());
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt stmt = statements.get(i);
+            if (local && replacing && isAllocation(stmt)) {
+                Stmt.Var var = (Stmt.Var) stmt;
+                List<Stmt> rest = statements.subList(i + 1, statements.size());
+                Set<Expr> references = EscapeAnalysis.analyze(var.name, rest, locals);
+                if (references != null) {
+                    nodes.add(scalarReplace(var, rest, references));
+                    break;
+                }
+            }
+            nodes.add(compile(stmt));
+        }
+        return nodes.toArray(new Node.Statement[0]);
+    }
+
+    // `var p = C();`, which makes an instance if C is a class
+    private static boolean isAllocation(Stmt stmt) {
+        if (!(stmt instanceof Stmt.Var) || !(((Stmt.Var) stmt).initializer instanceof Expr.Call))
+            return false;
+        Expr.Call call = (Expr.Call) ((Stmt.Var) stmt).initializer;
+        return call.arguments.isEmpty() && call.callee instanceof Expr.Variable;
+    }
+
+    private Node.Statement scalarReplace(Stmt.Var var, List<Stmt> rest, Set<Expr> references) {
+        Expr.Call call = (Expr.Call) var.initializer;
+        Node callee = compile(call.callee);
+
+        replaced.addAll(references);
+        Node.Statement[] withFields = compile(rest, true);
+        replaced.removeAll(references);
+
+        // the copy for when C isn't a class doesn't replace anything further,
+        // so each allocation costs one copy of the rest at most
+        replacing = false;
+        Node.Statement[] original = compile(rest, true);
+        replacing = true;
+
+        return new Node.ScalarReplace(interpreter, var.name.lexeme, callee, call.paren, withFields, original);
+    }
+
+    private Node.Statement compile(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    private Node compile(Expr expr) {
+        if (expr == null)
+            return null;
+        if (!regions.isEmpty() && !(expr instanceof Expr.Grouping)) {
+            for (Region region : regions) {
+                Integer slot = region.slot(expr);
+                if (slot != null)
+                    return new Node.Reuse(region.slots, slot, expr.accept(this));
+            }
+        }
+        return expr.accept(this);
+    }
+
+    // the expression of a statement, sharing what it computes twice
+    private Node root(Expr expr) {
+        if (expr == null || !sharing)
+            return compile(expr);
+        CommonExpressions analysis = CommonExpressions.statement(expr, locals, captured);
+        if (analysis == null)
+            return compile(expr);
+
+        Region region = new Region(analysis, 2);
+        regions.add(region);
+        Node node;
+        try {
+            node = compile(expr);
+        } finally {
+            regions.remove(regions.size() - 1);
+        }
+        return region.slots.size == 0 ? node : new Node.Common(region.slots, node);
+    }
+
+    @Override
+    public Node visitAssignExpr(Expr.Assign expr) {
+        if (SUPERINSTRUCTIONS && isIncrement(expr)) {
+            Expr.Binary binary = (Expr.Binary) expr.value;
+            return new Node.Increment(fused(binary.left), binary.operator, ((Expr.Literal) binary.right).value);
+        }
+
+        Node value = compile(expr.value);
+        Integer depth = locals.get(expr);
+        if (depth != null)
+            return new Node.AssignLocal(depth, expr.name.lexeme, value);
+        return new Node.AssignGlobal(interpreter.globals, expr.name, value);
+    }
+
+    @Override
+    public Node visitBinaryExpr(Expr.Binary expr) {
+        if (SUPERINSTRUCTIONS) {
+            Node fused = fuse(expr);
+            if (fused != null)
+                return fused;
+        }
+        Node left = compile(expr.left);
+        Node right = compile(expr.right);
+        Token operator = expr.operator;
+        if (isUnboxed(expr))
+            return unboxed(left, operator, right);
+
+        switch (operator.type) {
+            case GREATER:
+                return new Node.Greater(left, operator, right);
+            case GREATER_EQUAL:
+                return new Node.GreaterEqual(left, operator, right);
+            case LESS:
+                return new Node.Less(left, operator, right);
+            case LESS_EQUAL:
+                return new Node.LessEqual(left, operator, right);
+            case MINUS:
+            case MINUSEQUALS:
+                return new Node.Subtract(left, operator, right);
+            case PLUS:
+            case PLUSEQUALS:
+                Node.Add add = new Node.Add(interpreter, left, operator, right);
+                if (unstable.contains(expr))
+                    return add;
+                return new Node.AddNumbers(unit, expr, add);
+            case STAR:
+                return new Node.Multiply(left, operator, right);
+            case SLASH:
+                return new Node.Divide(left, operator, right);
+            case MODULO:
+                return new Node.Modulo(left, operator, right);
+            case BANG_EQUAL:
+                return new Node.Equal(left, right, true);
+            case EQUAL_EQUAL:
+                return new Node.Equal(left, right, false);
+            default:
+                return new Node.Discard(left, right);
+        }
+    }
+
+    // `i = i + 1`, `i = i - 1`, `i += 1` or `i -= 1`, with any number
+    private boolean isIncrement(Expr.Assign expr) {
+        if (!(expr.value instanceof Expr.Binary))
+            return false;
+        Expr.Binary binary = (Expr.Binary) expr.value;
+        switch (binary.operator.type) {
+            case PLUS:
+            case PLUSEQUALS:
+            case MINUS:
+            case MINUSEQUALS:
+                break;
+            default:
+                return false;
+        }
+        return binary.left instanceof Expr.Variable
+                && ((Expr.Variable) binary.left).name.lexeme.equals(expr.name.lexeme)
+                && Objects.equals(locals.get(binary.left), locals.get(expr)) && isNumber(binary.right);
+    }
+
+    // a fused node for a comparison of variables, or of x % k with a number,
+    // or null if the expression isn't one
+    private Node fuse(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                if (!(expr.left instanceof Expr.Variable) || isCounter(expr.left))
+                    return null;
+                if (expr.right instanceof Expr.Variable && !isCounter(expr.right))
+                    return new Node.CompareVariables(fused(expr.left), expr.operator, fused(expr.right), null);
+                if (isNumber(expr.right))
+                    return new Node.CompareVariables(fused(expr.left), expr.operator, null,
+                            ((Expr.Literal) expr.right).value);
+                return null;
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                if (!(expr.left instanceof Expr.Binary) || !isNumber(expr.right))
+                    return null;
+                Expr.Binary modulo = (Expr.Binary) expr.left;
+                if (modulo.operator.type != TokenType.MODULO || !isNumber(modulo.right))
+                    return null;
+                return new Node.ModuloEquals(compile(modulo.left), modulo.operator,
+                        ((Expr.Literal) modulo.right).value, ((Expr.Literal) expr.right).value,
+                        expr.operator.type == TokenType.BANG_EQUAL);
+            default:
+                return null;
+        }
+    }
+
+    // a variable whose value is in a Counter rather than its environment
+    private boolean isCounter(Expr variable) {
+        return !counters.isEmpty() && counters.containsKey(((Expr.Variable) variable).name.lexeme)
+                && locals.get(variable) != null;
+    }
+
+    private static boolean isNumber(Expr expr) {
+        return expr instanceof Expr.Literal && Numbers.isNumber(((Expr.Literal) expr).value);
+    }
+
+    // a variable for a fused node to read and write
+    private Node.Variable fused(Expr expr) {
+        Token name = ((Expr.Variable) expr).name;
+        Integer depth = locals.get(expr);
+        if (depth != null)
+            return new Node.Variable(depth, name);
+        return new Node.Variable(interpreter.globals, name);
+    }
+
+    private static Node unboxed(Node left, Token operator, Node right) {
+        switch (operator.type) {
+            case GREATER:
+                return new Node.UnboxedGreater(left, right);
+            case GREATER_EQUAL:
+                return new Node.UnboxedGreaterEqual(left, right);
+            case LESS:
+                return new Node.UnboxedLess(left, right);
+            case LESS_EQUAL:
+                return new Node.UnboxedLessEqual(left, right);
+            case MINUS:
+            case MINUSEQUALS:
+                return new Node.UnboxedSubtract(left, right);
+            case PLUS:
+            case PLUSEQUALS:
+                return new Node.UnboxedAdd(left, right);
+            case STAR:
+                return new Node.UnboxedMultiply(left, right);
+            case SLASH:
+                return new Node.UnboxedDivide(left, right);
+            default:
+                return new Node.UnboxedModulo(left, right);
+        }
+    }
+
+    @Override
+    public Node visitCallExpr(Expr.Call expr) {
+        return call(expr, false);
+    }
+
+    private Node call(Expr.Call expr, boolean tail) {
+        Node callee = compile(expr.callee);
+        Node[] arguments = new Node[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        Node.Call call = new Node.Call(interpreter, callee, expr.paren, arguments, tail);
+        if (INLINING && !tail && expr.callee instanceof Expr.Variable)
+            return new Node.Inline(interpreter, callee, expr.paren, arguments, call);
+        return call;
+    }
+
+    @Override
+    public Node visitGetExpr(Expr.Get expr) {
+        if (!replaced.isEmpty() && replaced.contains(expr.object))
+            return new Node.Local(locals.get(expr.object), field(expr.object, expr.name));
+        if (monomorphic.contains(expr))
+            return new Node.CachedGet(compile(expr.object), expr.name);
+        return new Node.Get(compile(expr.object), expr.name);
+    }
+
+    // the local holding a field of a replaced instance, which can't clash with
+    // a Lox variable
+    private static String field(Expr object, Token name) {
+        return ((Expr.Variable) object).name.lexeme + "." + name.lexeme;
+    }
+
+    @Override
+    public Node visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Node visitLiteralExpr(Expr.Literal expr) {
+        return new Node.Constant(expr.value);
+    }
+
+    @Override
+    public Node visitLogicalExpr(Expr.Logical expr) {
+        Node left = compile(expr.left);
+        Node right = compile(expr.right);
+        if (expr.operator.type == TokenType.OR)
+            return new Node.Or(left, right);
+        return new Node.And(left, right);
+    }
+
+    @Override
+    public Node visitSetExpr(Expr.Set expr) {
+        if (!replaced.isEmpty() && replaced.contains(expr.object))
+            return new Node.AssignLocal(locals.get(expr.object), field(expr.object, expr.name), compile(expr.value));
+        return new Node.Set(compile(expr.object), expr.name, compile(expr.value));
+    }
+
+    @Override
+    public Node visitThisExpr(Expr.This expr) {
+        return variable(expr, expr.keyword);
+    }
+
+    @Override
+    public Node visitUnaryExpr(Expr.Unary expr) {
+        Node right = compile(expr.right);
+        if (isUnboxed(expr))
+            return new Node.UnboxedNegate(right);
+        switch (expr.operator.type) {
+            case MINUS:
+                return new Node.Negate(expr.operator, right);
+            case BANG:
+                return new Node.Not(right);
+            default:
+                return new Node.Discard(right);
+        }
+    }
+
+    @Override
+    public Node visitVariableExpr(Expr.Variable expr) {
+        return variable(expr, expr.name);
+    }
+
+    private Node variable(Expr expr, Token name) {
+        Integer depth = locals.get(expr);
+        if (depth != null && !counters.isEmpty() && counters.containsKey(name.lexeme))
+            return new Node.CounterValue(counters.get(name.lexeme));
+        if (depth != null)
+            return new Node.Local(depth, name.lexeme);
+        return new Node.Global(interpreter.globals, name);
+    }
+
+    @Override
+    public Node.Statement visitBlockStmt(Stmt.Block stmt) {
+        return new Node.Block(compile(stmt.statements, true));
+    }
+
+    @Override
+    public Node.Statement visitClassStmt(Stmt.Class stmt) {
+        return new Node.Declare(interpreter, stmt, locals, captures, types, tailCalls);
+    }
+
+    @Override
+    public Node.Statement visitConstStmt(Stmt.Const stmt) {
+        return new Node.Define(stmt.name.lexeme, root(stmt.initializer));
+    }
+
+    @Override
+    public Node.Statement visitExpressionStmt(Stmt.Expression stmt) {
+        return new Node.Evaluate(root(stmt.expression));
+    }
+
+    @Override
+    public Node.Statement visitFunctionStmt(Stmt.Function stmt) {
+        return new Node.Declare(interpreter, stmt, locals, captures, types, tailCalls);
+    }
+
+    @Override
+    public Node.Statement visitIfStmt(Stmt.If stmt) {
+        return new Node.If(root(stmt.condition), compile(stmt.thenBranch), compile(stmt.elseBranch));
+    }
+
+    @Override
+    public Node.Statement visitPrintStmt(Stmt.Print stmt) {
+        return new Node.Print(interpreter, root(stmt.expression));
+    }
+
+    @Override
+    public Node.Statement visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null && !tailCalls.isEmpty() && tailCalls.contains(stmt.value))
+            return new Node.Return(call((Expr.Call) stmt.value, true));
+        return new Node.Return(root(stmt.value));
+    }
+
+    @Override
+    public Node.Statement visitVarStmt(Stmt.Var stmt) {
+        return new Node.Define(stmt.name.lexeme, root(stmt.initializer));
+    }
+
+    @Override
+    public Node.Statement visitWhileStmt(Stmt.While stmt) {
+        CommonExpressions analysis = sharing ? CommonExpressions.loop(stmt, locals, captured) : null;
+        if (analysis == null)
+            return loop(stmt);
+
+        Region region = new Region(analysis, 1);
+        regions.add(region);
+        Node.Statement loop;
+        try {
+            loop = loop(stmt);
+        } finally {
+            regions.remove(regions.size() - 1);
+        }
+        return region.slots.size == 0 ? loop : new Node.Hoist(region.slots, loop);
+    }
+
+    private Node.Statement loop(Stmt.While stmt) {
+        Expr.Variable variable = COUNTED_LOOPS ? InductionVariable.find(stmt, locals, captured) : null;
+        if (variable == null)
+            return new Node.While(root(stmt.condition), compile(stmt.body));
+
+        Expr.Binary condition = (Expr.Binary) stmt.condition;
+        List<Stmt> statements = ((Stmt.Block) stmt.body).statements;
+        Expr.Assign increment = (Expr.Assign) ((Stmt.Expression) statements.get(1)).expression;
+        Node.Counter counter = new Node.Counter();
+        String name = variable.name.lexeme;
+        Node.Counter shadowed = counters.put(name, counter);
+        try {
+            // the body keeps the block the increment was in, which its
+            // variables were resolved against
+            Node.Statement body = new Node.Block(new Node.Statement[] { compile(statements.get(0)) });
+            return new Node.CountedLoop(fused(variable), counter, condition.operator, root(condition.right), body,
+                    InductionVariable.step(increment));
+        } finally {
+            if (shadowed != null)
+                counters.put(name, shadowed);
+            else
+                counters.remove(name);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package jlox;
+
+// Lox numbers are Longs while they're integers and Doubles otherwise. An
+// integer literal is a Long, and arithmetic on two Longs stays a Long as long
+// as the result is an integer that fits: an overflow, or a division that
+// leaves a remainder, widens to a Double. So does a result of -0, which doubles
+// have and longs don't. Anything with a Double in it is worked out in doubles.
+//
+// Numbers are equal as Double.equals() has it, as they always were: NaN equals
+// itself and -0 doesn't equal 0. A Long and a Double are equal when they're the
+// same number, and a number prints the same either way, so a script can't tell
+// which one it has except by going past 2^53, where Longs stay exact.
+//
+// The operations here take operands that are already known to be numbers.
+final class Numbers {
+    private Numbers() {
+    }
+
+    static boolean isNumber(Object value) {
+        return value instanceof Long || value instanceof Double;
+    }
+
+    static double toDouble(Object number) {
+        if (number instanceof Long)
+            return (long) number;
+        return (double) number;
+    }
+
+    // the number a literal stands for
+    static Object parse(String text) {
+        if (text.indexOf('.') < 0) {
+            try {
+                return Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                // too big for a long
+            }
+        }
+        return Double.parseDouble(text);
+    }
+
+    static Object add(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) {
+            long x = (long) a;
+            long y = (long) b;
+            long result = x + y;
+            if (((x ^ result) & (y ^ result)) < 0)
+                return (double) x + (double) y;
+            return result;
+        }
+        return toDouble(a) + toDouble(b);
+    }
+
+    static Object subtract(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) {
+            long x = (long) a;
+            long y = (long) b;
+            long result = x - y;
+            if (((x ^ y) & (x ^ result)) < 0)
+                return (double) x - (double) y;
+            return result;
+        }
+        return toDouble(a) - toDouble(b);
+    }
+
+    static Object multiply(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) {
+            long x = (long) a;
+            long y = (long) b;
+            long high = Math.multiplyHigh(x, y);
+            long result = x * y;
+            if (result == 0 && (x ^ y) < 0)
+                return -0.0;
+            if ((high == 0 && result >= 0) || (high == -1 && result < 0))
+                return result;
+            return (double) x * (double) y;
+        }
+        return toDouble(a) * toDouble(b);
+    }
+
+    static Object divide(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) {
+            long x = (long) a;
+            long y = (long) b;
+            if (y != 0 && x % y == 0 && !(x == Long.MIN_VALUE && y == -1) && !(x == 0 && y < 0))
+                return x / y;
+        }
+        return toDouble(a) / toDouble(b);
+    }
+
+    static Object modulo(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long && (long) b != 0) {
+            long result = (long) a % (long) b;
+            if (result != 0 || (long) a >= 0)
+                return result;
+        }
+        return toDouble(a) % toDouble(b);
+    }
+
+    static Object negate(Object a) {
+        if (a instanceof Long && (long) a != Long.MIN_VALUE && (long) a != 0)
+            return -(long) a;
+        return -toDouble(a);
+    }
+
+    static boolean greater(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long)
+            return (long) a > (long) b;
+        return toDouble(a) > toDouble(b);
+    }
+
+    static boolean greaterEqual(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long)
+            return (long) a >= (long) b;
+        return toDouble(a) >= toDouble(b);
+    }
+
+    static boolean less(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long)
+            return (long) a < (long) b;
+        return toDouble(a) < toDouble(b);
+    }
+
+    static boolean lessEqual(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long)
+            return (long) a <= (long) b;
+        return toDouble(a) <= toDouble(b);
+    }
+
+    static boolean equal(Object a, Object b) {
+        if (a instanceof Long && b instanceof Double)
+            return equal((long) a, (double) b);
+        if (a instanceof Double && b instanceof Long)
+            return equal((long) b, (double) a);
+        return a.equals(b);
+    }
+
+    private static boolean equal(long a, double b) {
+        // b == 0 for -0 as well. 2^63 is the one double that converts to a
+        // long it isn't equal to.
+        return (double) a == b && !(b == 0 && 1 / b < 0) && b != 0x1p63 && (long) b == a;
+    }
+
+    static String toString(Object number) {
+        String text = number.toString();
+        // a Double that is an integer prints like one
+        if (number instanceof Double && text.endsWith(".0"))
+            text = text.substring(0, text.length() - 2);
+        return text;
+    }
+}
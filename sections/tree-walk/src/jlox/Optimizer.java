@@ -0,0 +1,334 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Rewrites a resolved program before it runs. Uses of literal consts become
+// the literal itself (see Resolver). When folding is on, operators whose
+// operands are literals are worked out here, and ifs and whiles on a literal
+// condition keep only the code that can run. An operation that would fail at
+// run time, like -"a" or 1 + nil, is left alone so it still fails there, with
+// the same message and line.
+//
+// Nodes are immutable, so a node whose children changed is built again, and
+// takes over the resolution, and the tail call mark, of the node it replaces.
+// Everything that didn't change is kept as it is.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    private final Map<Expr, Integer> locals;
+    private final Map<Stmt.Function, List<Resolver.Capture>> captures;
+    private final Set<Expr.Call> tailCalls;
+    private final Map<Expr, Object> constants;
+    private final boolean fold;
+
+    Optimizer(Map<Expr, Integer> locals, Map<Stmt.Function, List<Resolver.Capture>> captures,
+            Set<Expr.Call> tailCalls, Map<Expr, Object> constants, boolean fold) {
+        this.locals = locals;
+        this.captures = captures;
+        this.tailCalls = tailCalls;
+        this.constants = constants;
+        this.fold = fold;
+    }
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = null;
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = optimize(statements.get(i));
+            if (statement != statements.get(i) && optimized == null)
+                optimized = new ArrayList<>(statements.subList(0, i));
+            if (optimized != null && statement != null)
+                optimized.add(statement);
+        }
+        return optimized != null ? optimized : statements;
+    }
+
+    // null when the statement can never run
+    private Stmt optimize(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    // for the places that need a statement even if it does nothing
+    private Stmt statement(Stmt stmt) {
+        Stmt optimized = optimize(stmt);
+        return optimized != null ? optimized : new Stmt.Block(new ArrayList<>());
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    private List<Expr> optimizeAll(List<Expr> exprs) {
+        List<Expr> optimized = null;
+        for (int i = 0; i < exprs.size(); i++) {
+            Expr expr = optimize(exprs.get(i));
+            if (expr != exprs.get(i) && optimized == null)
+                optimized = new ArrayList<>(exprs.subList(0, i));
+            if (optimized != null)
+                optimized.add(expr);
+        }
+        return optimized != null ? optimized : exprs;
+    }
+
+    // moves the resolution of a node to the one replacing it
+    private <T extends Expr> T replace(Expr old, T replacement) {
+        Integer depth = locals.remove(old);
+        if (depth != null)
+            locals.put(replacement, depth);
+        return replacement;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value)
+            return expr;
+        return replace(expr, new Expr.Assign(expr.name, value));
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (fold && left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Expr folded = binary(expr.operator, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+            if (folded != null)
+                return folded;
+        }
+        if (left == expr.left && right == expr.right)
+            return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    // the value of the operation as a literal, or null if it would fail at run
+    // time; same rules as Interpreter.visitBinaryExpr
+    private static Expr binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case BANG_EQUAL:
+                return new Expr.Literal(!Interpreter.isEqual(left, right));
+            case EQUAL_EQUAL:
+                return new Expr.Literal(Interpreter.isEqual(left, right));
+            case PLUS:
+            case PLUSEQUALS:
+                if (left instanceof String && right instanceof String)
+                    return new Expr.Literal((String) left + (String) right);
+                break;
+            default:
+                break;
+        }
+        if (!Numbers.isNumber(left) || !Numbers.isNumber(right))
+            return null;
+
+        switch (operator.type) {
+            case GREATER:
+                return new Expr.Literal(Numbers.greater(left, right));
+            case GREATER_EQUAL:
+                return new Expr.Literal(Numbers.greaterEqual(left, right));
+            case LESS:
+                return new Expr.Literal(Numbers.less(left, right));
+            case LESS_EQUAL:
+                return new Expr.Literal(Numbers.lessEqual(left, right));
+            case MINUS:
+            case MINUSEQUALS:
+                return new Expr.Literal(Numbers.subtract(left, right));
+            case PLUS:
+            case PLUSEQUALS:
+                return new Expr.Literal(Numbers.add(left, right));
+            case STAR:
+                return new Expr.Literal(Numbers.multiply(left, right));
+            case SLASH:
+                return new Expr.Literal(Numbers.divide(left, right));
+            case MODULO:
+                return new Expr.Literal(Numbers.modulo(left, right));
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = optimizeAll(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments)
+            return expr;
+        Expr.Call call = replace(expr, new Expr.Call(callee, expr.paren, arguments));
+        if (tailCalls.remove(expr))
+            tailCalls.add(call);
+        return call;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object)
+            return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+        if (fold && expression instanceof Expr.Literal)
+            return expression;
+        if (expression == expr.expression)
+            return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (fold && left instanceof Expr.Literal) {
+            // the result is either the left side or whatever the right one is
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+            return truthy == (expr.operator.type == TokenType.OR) ? left : right;
+        }
+        if (left == expr.left && right == expr.right)
+            return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value)
+            return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (fold && right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) right).value;
+            if (expr.operator.type == TokenType.BANG)
+                return new Expr.Literal(!Interpreter.isTruthy(value));
+            if (expr.operator.type == TokenType.MINUS && Numbers.isNumber(value))
+                return new Expr.Literal(Numbers.negate(value));
+        }
+        if (right == expr.right)
+            return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        if (!constants.containsKey(expr))
+            return expr;
+        return new Expr.Literal(constants.get(expr));
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimize(stmt.statements);
+        if (statements == stmt.statements)
+            return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = null;
+        for (int i = 0; i < stmt.methods.size(); i++) {
+            Stmt.Function method = (Stmt.Function) optimize(stmt.methods.get(i));
+            if (method != stmt.methods.get(i) && methods == null)
+                methods = new ArrayList<>(stmt.methods.subList(0, i));
+            if (methods != null)
+                methods.add(method);
+        }
+        if (methods == null)
+            return stmt;
+        return new Stmt.Class(stmt.name, methods);
+    }
+
+    @Override
+    public Stmt visitConstStmt(Stmt.Const stmt) {
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer)
+            return stmt;
+        return new Stmt.Const(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression)
+            return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        List<Stmt> body = optimize(stmt.body);
+        if (body == stmt.body)
+            return stmt;
+
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+        List<Resolver.Capture> captured = captures.remove(stmt);
+        if (captured != null)
+            captures.put(function, captured);
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (fold && condition instanceof Expr.Literal) {
+            // a branch on its own runs in the same scope the if did
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal) condition).value);
+            return optimize(truthy ? stmt.thenBranch : stmt.elseBranch);
+        }
+        Stmt thenBranch = statement(stmt.thenBranch);
+        Stmt elseBranch = optimize(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch)
+            return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression)
+            return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value)
+            return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer)
+            return stmt;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (fold && condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value))
+            return null;
+        Stmt body = statement(stmt.body);
+        if (condition == stmt.condition && body == stmt.body)
+            return stmt;
+        return new Stmt.While(condition, body);
+    }
+}
@@ -12,10 +12,12 @@ class Parser {
     }
 
     private final List<Token> tokens;
+    private final ErrorReporter reporter;
     private int current = 0; // stores idx of the next token
 
-    Parser(List<Token> tokens) {
+    Parser(List<Token> tokens, ErrorReporter reporter) {
         this.tokens = tokens;
+        this.reporter = reporter;
     }
 
     public List<Stmt> parse() {
@@ -43,6 +45,8 @@ class Parser {
                 return function("function");
             if (findMatch(TokenType.VAR))
                 return varDeclaration();
+            if (findMatch(TokenType.CONST))
+                return constDeclaration();
 
             return statement();
         } catch (ParseError error) {
@@ -270,6 +274,15 @@ class Parser {
         return new Stmt.Var(name, initializer);
     }
 
+    // a const must be initialized, and can't be assigned afterwards (see Resolver)
+    private Stmt constDeclaration() {
+        Token name = consume(TokenType.IDENTIFIER, "Expect constant name.");
+        consume(TokenType.EQUAL, "Expect '=' after constant name.");
+        Expr initializer = expression();
+        consume(TokenType.SEMICOLON, "Expect ';' after constant declaration.");
+        return new Stmt.Const(name, initializer);
+    }
+
     private Stmt whileStatement() {
         consume(TokenType.LEFT_PAREN, "Expect '(' after while'.");
         Expr condition = expression();
@@ -441,7 +454,7 @@ class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        reporter.error(token, message);
         return new ParseError();
     }
 
@@ -457,6 +470,7 @@ class Parser {
                 case CLASS:
                 case FUN:
                 case VAR:
+                case CONST:
                 case FOR:
                 case IF:
                 case WHILE:
@@ -0,0 +1,410 @@
+package jlox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// An execution profile that outlives the run, so that a script run over and
+// over doesn't have to warm up from nothing every time. Records, per site:
+// operand types of binary operators, receiver classes of property gets, how
+// often each if was taken, how many iterations each loop ran and how often
+// each function was called. Together the if and loop counts give the branch
+// probabilities; they're kept in the profile, though nothing below seeds a
+// decision from the if counts yet.
+//
+// A site is named by the hash of its program's source and its position in a
+// preorder walk of the syntax tree, which is the same on every run of the same
+// source. Profiles of programs whose source changed are simply not found.
+//
+// Loading a profile seeds the NodeCompiler: functions and loops that were hot
+// are compiled on first use, and additions that saw strings skip the number
+// speculation, and gets that only ever saw one class get an inline cache.
+// Counts from the new run are added to the loaded ones when the profile is
+// saved again. Only the interpreter tier records, which is enough to find the
+// hot spots since everything starts there, and keeps compiled code as fast
+// with a profile as without.
+class Profiler {
+    private static final String HEADER = "jlox-profile 3";
+
+    static class Site {
+        final String kind;
+        final int id;
+        String name = "";
+        long first = 0; // calls, branches taken, loop entries
+        long second = 0; // branches not taken, loop iterations
+        final Set<String> seen = new TreeSet<>(); // operand types or receiver classes
+
+        Site(String kind, int id) {
+            this.kind = kind;
+            this.id = id;
+        }
+    }
+
+    private final NodeCompiler compiler;
+    // source hash -> site id -> site
+    private final Map<String, Map<Integer, Site>> programs = new LinkedHashMap<>();
+    private final Map<String, Map<Integer, Site>> loaded = new LinkedHashMap<>();
+    private final Map<Object, Site> sites = new IdentityHashMap<>();
+
+    Profiler(NodeCompiler compiler) {
+        this.compiler = compiler;
+    }
+
+    // starts from the profile in the file, if there is one
+    void load(Path path) throws IOException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER))
+            throw new IOException(path + " is not a jlox profile.");
+
+        Map<Integer, Site> program = null;
+        for (String line : lines.subList(1, lines.size())) {
+            String[] parts = line.split(" ");
+            try {
+                if (parts[0].equals("program")) {
+                    program = new TreeMap<>();
+                    loaded.put(parts[1], program);
+                    continue;
+                }
+
+                Site site = new Site(parts[0], Integer.parseInt(parts[1]));
+                switch (site.kind) {
+                    case "function":
+                        site.first = Long.parseLong(parts[2]);
+                        site.name = parts[3];
+                        break;
+                    case "branch":
+                    case "loop":
+                        site.first = Long.parseLong(parts[2]);
+                        site.second = Long.parseLong(parts[3]);
+                        break;
+                    case "binary":
+                    case "get":
+                        site.seen.addAll(List.of(parts).subList(2, parts.length));
+                        break;
+                    default:
+                        throw new IOException("Unknown profile entry '" + line + "'.");
+                }
+                program.put(site.id, site);
+            } catch (NumberFormatException | IndexOutOfBoundsException | NullPointerException e) {
+                throw new IOException("Malformed profile entry '" + line + "'.");
+            }
+        }
+    }
+
+    // writes this run's profile, added to the one it was loaded with
+    void save(Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(HEADER);
+        for (Map.Entry<String, Map<Integer, Site>> program : programs.entrySet()) {
+            lines.add("program " + program.getKey());
+            for (Site site : program.getValue().values()) {
+                switch (site.kind) {
+                    case "function":
+                        lines.add("function " + site.id + " " + site.first + " " + site.name);
+                        break;
+                    case "branch":
+                    case "loop":
+                        lines.add(site.kind + " " + site.id + " " + site.first + " " + site.second);
+                        break;
+                    default:
+                        if (!site.seen.isEmpty())
+                            lines.add(site.kind + " " + site.id + " " + String.join(" ", site.seen));
+                }
+            }
+        }
+        Files.write(path, lines, StandardCharsets.UTF_8);
+    }
+
+    // registers the sites of a program about to run, and hands the compiler
+    // whatever the loaded profile knows about them
+    void attach(String source, List<Stmt> statements) {
+        String hash = hash(source);
+        Map<Integer, Site> program = programs.get(hash);
+        if (program == null) {
+            program = loaded.containsKey(hash) ? loaded.get(hash) : new TreeMap<>();
+            programs.put(hash, program);
+        }
+        new Numbering(program).walk(statements);
+    }
+
+    void call(Stmt.Function declaration) {
+        Site site = sites.get(declaration);
+        if (site != null)
+            site.first++;
+    }
+
+    void binary(Expr.Binary expr, Object left, Object right) {
+        Site site = sites.get(expr);
+        if (site != null)
+            site.seen.add(typeOf(left) + ":" + typeOf(right));
+    }
+
+    void receiver(Expr.Get expr, Object object) {
+        Site site = sites.get(expr);
+        if (site != null && object instanceof LoxInstance)
+            site.seen.add(((LoxInstance) object).klass.name);
+    }
+
+    void branch(Stmt.If stmt, boolean taken) {
+        Site site = sites.get(stmt);
+        if (site == null)
+            return;
+        if (taken)
+            site.first++;
+        else
+            site.second++;
+    }
+
+    void loop(Stmt.While stmt, int iterations) {
+        Site site = sites.get(stmt);
+        if (site == null)
+            return;
+        site.first++;
+        site.second += iterations;
+    }
+
+    private static String typeOf(Object value) {
+        if (value == null)
+            return "nil";
+        if (Numbers.isNumber(value))
+            return "number";
+        if (Rope.isString(value))
+            return "string";
+        if (value instanceof Boolean)
+            return "bool";
+        if (value instanceof LoxInstance)
+            return "instance";
+        return "callable";
+    }
+
+    private static String hash(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    }
+
+    // numbers every node of a program in preorder, and attaches the sites the
+    // profiler records to the nodes they belong to
+    private class Numbering implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final Map<Integer, Site> program;
+        private int next = 0;
+
+        Numbering(Map<Integer, Site> program) {
+            this.program = program;
+        }
+
+        void walk(List<? extends Stmt> statements) {
+            for (Stmt statement : statements) {
+                walk(statement);
+            }
+        }
+
+        private void walk(Stmt stmt) {
+            if (stmt != null)
+                stmt.accept(this);
+        }
+
+        private void walk(Expr expr) {
+            if (expr != null)
+                expr.accept(this);
+        }
+
+        private Site site(Object node, String kind) {
+            int id = next++;
+            Site site = program.computeIfAbsent(id, k -> new Site(kind, id));
+            if (!site.kind.equals(kind)) {
+                // the tree doesn't match the profile after all
+                site = new Site(kind, id);
+                program.put(id, site);
+            }
+            sites.put(node, site);
+            return site;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            next++;
+            walk(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            Site site = site(expr, "binary");
+            if (site.seen.stream().anyMatch(types -> !types.equals("number:number")))
+                compiler.generic(expr);
+            walk(expr.left);
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            next++;
+            walk(expr.callee);
+            for (Expr argument : expr.arguments) {
+                walk(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            Site site = site(expr, "get");
+            if (site.seen.size() == 1)
+                compiler.monomorphic(expr);
+            walk(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            next++;
+            walk(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            next++;
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            next++;
+            walk(expr.left);
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            next++;
+            walk(expr.object);
+            walk(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            next++;
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            next++;
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            next++;
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            next++;
+            walk(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            next++;
+            walk(stmt.methods);
+            return null;
+        }
+
+        @Override
+        public Void visitConstStmt(Stmt.Const stmt) {
+            next++;
+            walk(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            next++;
+            walk(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            Site site = site(stmt, "function");
+            site.name = stmt.name.lexeme;
+            if (site.first >= NodeCompiler.CALL_THRESHOLD)
+                compiler.hot(stmt);
+            walk(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            site(stmt, "branch");
+            walk(stmt.condition);
+            walk(stmt.thenBranch);
+            walk(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            next++;
+            walk(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            next++;
+            walk(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            next++;
+            walk(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            Site site = site(stmt, "loop");
+            if (site.second >= NodeCompiler.LOOP_THRESHOLD)
+                compiler.hot(stmt);
+            walk(stmt.condition);
+            walk(stmt.body);
+            return null;
+        }
+    }
+}
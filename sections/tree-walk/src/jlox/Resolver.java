@@ -1,10 +1,31 @@
 package jlox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
+// Resolves every local variable to the number of environments between its use
+// and its declaration, and works out what each function captures.
+//
+// Functions are flat closures: a function's closure holds only the variables
+// declared outside it that its body (or a function nested in it) uses, copied
+// in when the function is created, rather than the whole chain of scopes it was
+// declared in. Inside the function those variables are one environment past
+// its outermost scope. A captured variable that is assigned anywhere is shared
+// through a Box instead, so every function sees the same value.
+//
+// A const can't be assigned or declared again. That's checked here within one
+// program; for a global const, the global environment also checks it at run
+// time, since a later program (the script after a prelude, the next REPL line)
+// is resolved without knowing about it. Uses of a const whose
+// initializer is a literal aren't resolved at all: they're listed in constants
+// for the Optimizer to replace with the literal.
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private enum FunctionType {
         NONE, FUNCTION, METHOD, INITIALIZER
@@ -15,14 +36,56 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         CLASS
     }
 
+    // a variable a function copies into its closure when it's created
+    static final class Capture {
+        final String name;
+        final int depth; // from the environment the function is declared in
+        boolean mutable = false; // assigned somewhere, so shared through a Box
+
+        Capture(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    // a function being resolved
+    private static final class Frame {
+        final int scope; // its outermost scope, the one holding this for a method
+        final Map<String, Capture> captures = new LinkedHashMap<>();
+
+        Frame(int scope) {
+            this.scope = scope;
+        }
+    }
+
     private ClassType currentClass = ClassType.NONE;
 
-    private final Interpreter interpreter;
+    private final Map<Expr, Integer> locals;
+    private final Map<Stmt.Function, List<Capture>> captures;
+    // calls that are the value of a return, which the interpreter runs without
+    // nesting them in the caller
+    private final Set<Expr.Call> tailCalls;
+    private final ErrorReporter reporter;
     private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    // per scope: the captures of each variable, and which variables are assigned
+    private final Stack<Map<String, List<Capture>>> captured = new Stack<>();
+    private final Stack<Set<String>> assigned = new Stack<>();
+    private final Stack<Map<String, Stmt.Const>> consts = new Stack<>();
+    // global consts, and assignments to globals made inside functions, which
+    // may run after a const of the same name is declared
+    private final Map<String, Stmt.Const> globalConsts = new HashMap<>();
+    private final Map<String, List<Token>> globalAssignments = new HashMap<>();
+    private final Stack<Frame> frames = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
+    // uses of literal consts, and the literal
+    final Map<Expr, Object> constants = new IdentityHashMap<>();
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    Resolver(Map<Expr, Integer> locals, Map<Stmt.Function, List<Capture>> captures, Set<Expr.Call> tailCalls,
+            ErrorReporter reporter) {
+        this.locals = locals;
+        this.captures = captures;
+        this.tailCalls = tailCalls;
+        this.reporter = reporter;
     }
 
     @Override
@@ -49,9 +112,20 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private void beginScope() {
         scopes.push(new HashMap<String, Boolean>());
+        captured.push(new HashMap<>());
+        assigned.push(new HashSet<>());
+        consts.push(new HashMap<>());
     }
 
     private void endScope() {
+        // every assignment to the scope's variables has been seen by now
+        Map<String, List<Capture>> captures = captured.pop();
+        for (String name : assigned.pop()) {
+            for (Capture capture : captures.getOrDefault(name, List.of())) {
+                capture.mutable = true;
+            }
+        }
+        consts.pop();
         scopes.pop();
     }
 
@@ -86,14 +160,34 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitConstStmt(Stmt.Const stmt) {
+        declare(stmt.name);
+        resolve(stmt.initializer);
+        define(stmt.name);
+
+        if (!scopes.isEmpty()) {
+            consts.peek().put(stmt.name.lexeme, stmt);
+            return null;
+        }
+        globalConsts.put(stmt.name.lexeme, stmt);
+        for (Token assignment : globalAssignments.getOrDefault(stmt.name.lexeme, List.of())) {
+            reporter.error(assignment, "Can't assign to a constant.");
+        }
+        return null;
+    }
+
     private void declare(Token name) {
-        if (scopes.isEmpty())
+        if (scopes.isEmpty()) {
+            if (globalConsts.containsKey(name.lexeme))
+                reporter.error(name, "Already a constant with this name.");
             return;
+        }
 
         Map<String, Boolean> scope = scopes.peek();
 
         if (scope.containsKey(name.lexeme)) {
-            Lox.error(name, "Already a variable with this name in this scope.");
+            reporter.error(name, "Already a variable with this name in this scope.");
         }
 
         scope.put(name.lexeme, false); // the variable exists, but is not yet resolved
@@ -109,28 +203,78 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitVariableExpr(Expr.Variable expr) {
         if (!scopes.isEmpty() &&
                 scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name, "Can't read local variable in its own initializer.");
+            reporter.error(expr.name, "Can't read local variable in its own initializer.");
         }
 
+        Stmt.Const constant = constant(expr.name.lexeme);
+        if (constant != null && constant.initializer instanceof Expr.Literal) {
+            constants.put(expr, ((Expr.Literal) constant.initializer).value);
+            return null;
+        }
         resolveLocal(expr, expr.name);
         return null;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // the const a name refers to here, if it is one
+    private Stmt.Const constant(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).containsKey(name))
+                return consts.get(i).get(name);
+        }
+        return globalConsts.get(name);
+    }
+
+    // returns the scope the variable was found in, or -1 for a global
+    private int resolveLocal(Expr expr, Token name) {
         // look for variables starting from the innermost scope. if it's found, resolve
         // it
         for (int i = scopes.size() - 1; i >= 0; i--) {
             if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+                locals.put(expr, depth(i, name.lexeme));
+                return i;
             }
         }
+        return -1;
+    }
+
+    // the depth of a variable declared in scope i, as seen from the innermost
+    // scope. Every function between the two captures the variable.
+    private int depth(int i, String name) {
+        int outermost = frames.size();
+        while (outermost > 0 && frames.get(outermost - 1).scope > i) {
+            outermost--;
+        }
+        if (outermost == frames.size())
+            return scopes.size() - 1 - i;
+
+        for (int f = outermost; f < frames.size(); f++) {
+            Frame frame = frames.get(f);
+            if (frame.captures.containsKey(name))
+                continue;
+            // the function is declared in the scope just outside its own, where the
+            // variable is either still in its scope or in the enclosing
+            // function's closure
+            int declared = frame.scope - 1;
+            int depth = f == outermost ? declared - i : declared - frames.get(f - 1).scope + 1;
+            Capture capture = new Capture(name, depth);
+            frame.captures.put(name, capture);
+            captured.get(i).computeIfAbsent(name, k -> new ArrayList<>()).add(capture);
+        }
+        return scopes.size() - 1 - frames.peek().scope + 1;
     }
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        String name = expr.name.lexeme;
+        int scope = resolveLocal(expr, expr.name);
+        if (scope >= 0 ? consts.get(scope).containsKey(name) : globalConsts.containsKey(name)) {
+            reporter.error(expr.name, "Can't assign to a constant.");
+        } else if (scope >= 0) {
+            assigned.get(scope).add(name);
+        } else if (!frames.isEmpty()) {
+            globalAssignments.computeIfAbsent(name, k -> new ArrayList<>()).add(expr.name);
+        }
         return null;
     }
 
@@ -147,6 +291,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
 
+        // a method's this lives in a scope of its own, just outside the method
+        Frame frame = new Frame(type == FunctionType.FUNCTION ? scopes.size() : scopes.size() - 1);
+        frames.push(frame);
         beginScope();
         for (Token param : function.params) {
             declare(param);
@@ -154,7 +301,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
         resolve(function.body);
         endScope();
+        frames.pop();
         currentFunction = enclosingFunction;
+
+        if (!frame.captures.isEmpty())
+            captures.put(function, new ArrayList<>(frame.captures.values()));
     }
 
     @Override
@@ -181,14 +332,16 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Can't return from top-level code.");
+            reporter.error(stmt.keyword, "Can't return from top-level code.");
         }
 
         if (stmt.value != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
-                Lox.error(stmt.keyword, "Can't return a value from an initializer.");
+                reporter.error(stmt.keyword, "Can't return a value from an initializer.");
             }
             resolve(stmt.value);
+            if (stmt.value instanceof Expr.Call && currentFunction != FunctionType.INITIALIZER)
+                tailCalls.add((Expr.Call) stmt.value);
         }
 
         return null;
@@ -0,0 +1,98 @@
+package jlox;
+
+import java.util.ArrayDeque;
+
+// A Lox string made by + from two others, whose characters are only copied
+// into one String when something needs them: printing it, comparing it or
+// hashing it. Building a string a piece at a time with s = s + x then costs a
+// node per piece rather than a copy of everything so far.
+//
+// Lox strings are Strings or Ropes, and a script can't tell which it has: a
+// Rope equals the String with the same characters and hashes like it.
+final class Rope implements CharSequence {
+    // results shorter than this are copied straight away, since a copy that
+    // small costs less than the node
+    static final int MIN_LENGTH = 64;
+
+    private final CharSequence left;
+    private final CharSequence right;
+    private final int length;
+    // the characters, once something has needed them. The children are kept,
+    // since other ropes may share them.
+    private String flat;
+
+    private Rope(CharSequence left, CharSequence right) {
+        this.left = left;
+        this.right = right;
+        this.length = left.length() + right.length();
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    // left + right, for two Lox strings
+    static CharSequence concat(CharSequence left, CharSequence right) {
+        if (left.length() == 0)
+            return right;
+        if (right.length() == 0)
+            return left;
+        if (left.length() + right.length() < MIN_LENGTH)
+            return left.toString() + right.toString();
+        return new Rope(left, right);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        String flat = this.flat;
+        if (flat != null)
+            return flat;
+
+        // left to right without recursing, since s = s + x makes a tree as
+        // deep as the number of pieces
+        StringBuilder builder = new StringBuilder(length);
+        ArrayDeque<CharSequence> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            CharSequence next = pending.pop();
+            if (next instanceof Rope && ((Rope) next).flat == null) {
+                pending.push(((Rope) next).right);
+                pending.push(((Rope) next).left);
+            } else {
+                builder.append(next.toString());
+            }
+        }
+        flat = builder.toString();
+        this.flat = flat;
+        return flat;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!isString(other) || ((CharSequence) other).length() != length)
+            return false;
+        return toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -1,10 +1,44 @@
 package jlox;
 
+import java.util.ArrayList;
+import java.util.List;
+
 class RuntimeError extends RuntimeException{
     final Token token;
-    
+    // the Lox functions the error came out of, innermost first, and the line
+    // each was at. Filled in by LoxFunction.call() as the error unwinds, which
+    // is all the stack a script author needs; the Java one is never captured.
+    private final List<String> functions = new ArrayList<>();
+    private final List<Integer> lines = new ArrayList<>();
+    private int line; // where the function the error is about to leave got to
+
     RuntimeError(Token token, String message){
-        super(message);
+        super(message, null, false, false);
         this.token = token;
+        this.line = token.line;
+    }
+
+    // the error is leaving a call to function, which was made at callSite (or
+    // from Java, if that is null)
+    void unwind(String function, Token callSite) {
+        functions.add(function);
+        lines.add(line);
+        line = callSite == null ? -1 : callSite.line;
+    }
+
+    // "[line N] in f()" for every function the error came out of, then the
+    // line of top-level code it started from. Empty if it never left top-level
+    // code.
+    List<String> trace() {
+        List<String> trace = new ArrayList<>();
+        if (functions.isEmpty())
+            return trace;
+
+        for (int i = 0; i < functions.size(); i++) {
+            trace.add("[line " + lines.get(i) + "] in " + functions.get(i) + "()");
+        }
+        if (line != -1)
+            trace.add("[line " + line + "] in script");
+        return trace;
     }
-}
\ No newline at end of file
+}
@@ -12,6 +12,7 @@ public class Scanner {
         keywords = new HashMap<>();
         keywords.put("and", TokenType.AND);
         keywords.put("class", TokenType.CLASS);
+        keywords.put("const", TokenType.CONST);
         keywords.put("else", TokenType.ELSE);
         keywords.put("false", TokenType.FALSE);
         keywords.put("for", TokenType.FOR);
@@ -28,13 +29,15 @@ public class Scanner {
         keywords.put("while", TokenType.WHILE);
     }
     private final String source;
+    private final ErrorReporter reporter;
     private final List<Token> tokens = new ArrayList<>();
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    Scanner(String source) {
+    Scanner(String source, ErrorReporter reporter) {
         this.source = source;
+        this.reporter = reporter;
     }
 
     List<Token> scanTokens() {
@@ -133,7 +136,7 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, "Unexpected character.");
+                    reporter.error(line, "Unexpected character.");
                 }
                 break;
         }
@@ -171,8 +174,7 @@ public class Scanner {
         while (isDigit(peek()))
             advance();
 
-        double value = Double.parseDouble(source.substring(start, current));
-        addToken(TokenType.NUMBER, value);
+        addToken(TokenType.NUMBER, Numbers.parse(source.substring(start, current)));
     }
 
     private void string() {
@@ -184,7 +186,7 @@ public class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminiated string.");
+            reporter.error(line, "Unterminiated string.");
             return;
         }
         // the closing "
@@ -0,0 +1,832 @@
+package jlox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// A saved global environment: the classes, functions and values a prelude
+// declared, along with the resolved syntax trees of the function bodies.
+// Loading one gives a run the prelude's globals without scanning, parsing or
+// resolving anything.
+//
+// This is a small hand-rolled format rather than Java serialization, which
+// spends longer loading its own machinery than parsing a prelude takes.
+// Objects that can be shared (environments, functions, classes, instances,
+// boxes, function declarations and resolution maps) are numbered in the order they
+// are first written and referred to by number afterwards. The contents of
+// environments and instances are written after everything else, which is what
+// breaks the cycle between a function and the environment that holds it.
+class Snapshot {
+    private static final int MAGIC = 0x4a4c4f58; // "JLOX"
+    private static final int VERSION = 6;
+    private static final int UNRESOLVED = Integer.MIN_VALUE;
+
+    // value tags
+    private static final byte NIL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+    private static final byte REF = 5;
+    private static final byte ENVIRONMENT = 6;
+    private static final byte FUNCTION = 7;
+    private static final byte CLASS = 8;
+    private static final byte INSTANCE = 9;
+    private static final byte PROGRAM = 10;
+    private static final byte BOX = 11;
+    private static final byte INTEGER = 12;
+
+    // syntax tree tags, NIL stands for a missing node
+    private static final byte ASSIGN = 20;
+    private static final byte BINARY = 21;
+    private static final byte CALL = 22;
+    private static final byte GET = 23;
+    private static final byte GROUPING = 24;
+    private static final byte LITERAL = 25;
+    private static final byte LOGICAL = 26;
+    private static final byte SET = 27;
+    private static final byte THIS = 28;
+    private static final byte UNARY = 29;
+    private static final byte VARIABLE = 30;
+    private static final byte BLOCK = 40;
+    private static final byte CLASS_STMT = 41;
+    private static final byte EXPRESSION = 42;
+    private static final byte FUNCTION_STMT = 43;
+    private static final byte IF = 44;
+    private static final byte PRINT = 45;
+    private static final byte RETURN = 46;
+    private static final byte VAR = 47;
+    private static final byte WHILE = 48;
+    private static final byte CONST = 49;
+
+    static void save(Environment globals, Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            try {
+                new Encoder(out, globals).write();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    // fails with an IOException if the file isn't a snapshot from this version
+    static Environment load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(path + " is not a jlox snapshot.");
+            if (in.readInt() != VERSION)
+                throw new IOException(path + " was written by a different version of jlox.");
+            return new Decoder(in).read();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (ClassCastException | IndexOutOfBoundsException e) {
+            throw new IOException(path + " is corrupt.", e);
+        }
+    }
+
+    private static class Encoder implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final DataOutputStream out;
+        private final Environment globals;
+        private final Map<Object, Integer> ids = new IdentityHashMap<>();
+        // environments and instances whose contents are still to be written
+        private final ArrayDeque<Object> pending = new ArrayDeque<>();
+        // resolution of the function being written
+        private Map<Expr, Integer> program = Map.of();
+        private Map<Stmt.Function, List<Resolver.Capture>> captures = Map.of();
+        private Set<Expr.Call> tailCalls = Set.of();
+
+        Encoder(DataOutputStream out, Environment globals) {
+            this.out = out;
+            this.globals = globals;
+        }
+
+        void write() {
+            value(globals);
+
+            while (!pending.isEmpty()) {
+                Object object = pending.removeFirst();
+                if (object instanceof Environment) {
+                    contents((Environment) object, ((Environment) object).values);
+                } else {
+                    contents(object, ((LoxInstance) object).fields);
+                }
+            }
+
+            // the globals that are consts, so they stay consts
+            writeInt(globals.consts().size());
+            for (String name : globals.consts()) {
+                string(name);
+            }
+        }
+
+        private void contents(Object owner, Map<String, Object> values) {
+            List<Map.Entry<String, Object>> entries = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                if (isNative(entry.getValue())) {
+                    // natives aren't globals of their own; every interpreter
+                    // has them (see Interpreter.NATIVES)
+                    if (owner == globals)
+                        continue;
+                    throw new UncheckedIOException(new IOException(
+                            "Can't snapshot the native function in '" + entry.getKey() + "'."));
+                }
+                entries.add(entry);
+            }
+
+            writeInt(entries.size());
+            for (Map.Entry<String, Object> entry : entries) {
+                string(entry.getKey());
+                value(entry.getValue());
+            }
+        }
+
+        private void value(Object value) {
+            if (value == null) {
+                writeByte(NIL);
+            } else if (value instanceof Boolean) {
+                writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Long) {
+                writeByte(INTEGER);
+                writeLong((Long) value);
+            } else if (value instanceof Double) {
+                writeByte(NUMBER);
+                writeDouble((Double) value);
+            } else if (Rope.isString(value)) {
+                // a Rope is written as the String it stands for
+                writeByte(STRING);
+                string(value.toString());
+            } else if (reference(value)) {
+                return;
+            } else if (value instanceof Environment) {
+                writeByte(ENVIRONMENT);
+                number(value);
+                value(((Environment) value).enclosing);
+                pending.add(value);
+            } else if (value instanceof LoxFunction) {
+                LoxFunction function = (LoxFunction) value;
+                writeByte(FUNCTION);
+                number(function);
+                program(function.locals);
+
+                Map<Expr, Integer> enclosing = program;
+                Map<Stmt.Function, List<Resolver.Capture>> enclosingCaptures = captures;
+                Set<Expr.Call> enclosingTailCalls = tailCalls;
+                program = function.locals;
+                captures = function.captures;
+                tailCalls = function.tailCalls;
+                declaration(function.declaration);
+                program = enclosing;
+                captures = enclosingCaptures;
+                tailCalls = enclosingTailCalls;
+
+                value(function.closure);
+                writeBoolean(function.isInitializer);
+            } else if (value instanceof LoxClass) {
+                LoxClass klass = (LoxClass) value;
+                writeByte(CLASS);
+                number(klass);
+                string(klass.name);
+                writeInt(klass.methods.size());
+                for (Map.Entry<String, LoxFunction> method : klass.methods.entrySet()) {
+                    string(method.getKey());
+                    value(method.getValue());
+                }
+            } else if (value instanceof Box) {
+                writeByte(BOX);
+                number(value);
+                value(((Box) value).value);
+            } else if (value instanceof LoxInstance) {
+                writeByte(INSTANCE);
+                number(value);
+                value(((LoxInstance) value).klass);
+                pending.add(value);
+            } else {
+                throw new UncheckedIOException(new IOException("Can't snapshot " + value + "."));
+            }
+        }
+
+        private void program(Map<Expr, Integer> locals) {
+            if (reference(locals))
+                return;
+            writeByte(PROGRAM);
+            number(locals);
+        }
+
+        // writes a reference if the object has been written before
+        private boolean reference(Object object) {
+            Integer id = ids.get(object);
+            if (id == null)
+                return false;
+
+            writeByte(REF);
+            writeInt(id);
+            return true;
+        }
+
+        private void number(Object object) {
+            ids.put(object, ids.size());
+        }
+
+        private void declaration(Stmt.Function function) {
+            if (reference(function))
+                return;
+
+            writeByte(FUNCTION_STMT);
+            number(function);
+            token(function.name);
+            writeInt(function.params.size());
+            for (Token param : function.params) {
+                token(param);
+            }
+            statements(function.body);
+
+            List<Resolver.Capture> captured = captures.getOrDefault(function, List.of());
+            writeInt(captured.size());
+            for (Resolver.Capture capture : captured) {
+                string(capture.name);
+                writeInt(capture.depth);
+                writeBoolean(capture.mutable);
+            }
+        }
+
+        private void expr(Expr expr) {
+            if (expr == null) {
+                writeByte(NIL);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void stmt(Stmt stmt) {
+            if (stmt == null) {
+                writeByte(NIL);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        private void statements(List<Stmt> statements) {
+            writeInt(statements.size());
+            for (Stmt statement : statements) {
+                stmt(statement);
+            }
+        }
+
+        private void token(Token token) {
+            writeByte((byte) token.type.ordinal());
+            string(token.lexeme);
+            literal(token.literal);
+            writeInt(token.line);
+        }
+
+        private void literal(Object value) {
+            if (value == null || value instanceof Boolean || Numbers.isNumber(value) || value instanceof String) {
+                value(value);
+            } else {
+                throw new UncheckedIOException(new IOException("Can't snapshot the literal " + value + "."));
+            }
+        }
+
+        // the resolution of an expression
+        private void depth(Expr expr) {
+            Integer depth = program.get(expr);
+            writeInt(depth != null ? depth : UNRESOLVED);
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            writeByte(ASSIGN);
+            token(expr.name);
+            expr(expr.value);
+            depth(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            writeByte(BINARY);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            writeByte(CALL);
+            expr(expr.callee);
+            token(expr.paren);
+            writeInt(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                expr(argument);
+            }
+            writeBoolean(tailCalls.contains(expr));
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            writeByte(GET);
+            expr(expr.object);
+            token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            writeByte(GROUPING);
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            writeByte(LITERAL);
+            literal(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            writeByte(LOGICAL);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            writeByte(SET);
+            expr(expr.object);
+            token(expr.name);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            writeByte(THIS);
+            token(expr.keyword);
+            depth(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            writeByte(UNARY);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            writeByte(VARIABLE);
+            token(expr.name);
+            depth(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            writeByte(BLOCK);
+            statements(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            writeByte(CLASS_STMT);
+            token(stmt.name);
+            writeInt(stmt.methods.size());
+            for (Stmt.Function method : stmt.methods) {
+                declaration(method);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitConstStmt(Stmt.Const stmt) {
+            writeByte(CONST);
+            token(stmt.name);
+            expr(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            writeByte(EXPRESSION);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            declaration(stmt);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            writeByte(IF);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            writeByte(PRINT);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            writeByte(RETURN);
+            token(stmt.keyword);
+            expr(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            writeByte(VAR);
+            token(stmt.name);
+            expr(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            writeByte(WHILE);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+
+        private static boolean isNative(Object value) {
+            return value instanceof LoxCallable && !(value instanceof LoxFunction) && !(value instanceof LoxClass);
+        }
+
+        private void string(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            try {
+                out.write(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeByte(byte value) {
+            try {
+                out.writeByte(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeBoolean(boolean value) {
+            writeByte(value ? TRUE : FALSE);
+        }
+
+        private void writeInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeLong(long value) {
+            try {
+                out.writeLong(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeDouble(double value) {
+            try {
+                out.writeDouble(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static class Decoder {
+        private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+        private final DataInputStream in;
+        private final List<Object> objects = new ArrayList<>();
+        private final ArrayDeque<Object> pending = new ArrayDeque<>();
+        private Map<Expr, Integer> program = new HashMap<>();
+        private Map<Stmt.Function, List<Resolver.Capture>> captures = new IdentityHashMap<>();
+        private Set<Expr.Call> tailCalls = Collections.newSetFromMap(new IdentityHashMap<>());
+        // the captures and tail calls of each program, which is numbered by its
+        // locals
+        private final Map<Map<Expr, Integer>, Map<Stmt.Function, List<Resolver.Capture>>> programs =
+                new IdentityHashMap<>();
+        private final Map<Map<Expr, Integer>, Set<Expr.Call>> programTailCalls = new IdentityHashMap<>();
+
+        Decoder(DataInputStream in) {
+            this.in = in;
+        }
+
+        Environment read() throws IOException {
+            Environment globals = (Environment) value();
+
+            while (!pending.isEmpty()) {
+                Object object = pending.removeFirst();
+                Map<String, Object> values = object instanceof Environment ? ((Environment) object).values
+                        : ((LoxInstance) object).fields;
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String name = string();
+                    values.put(name, value());
+                }
+            }
+
+            int consts = in.readInt();
+            for (int i = 0; i < consts; i++) {
+                globals.constant(string());
+            }
+            return globals;
+        }
+
+        private Object value() throws IOException {
+            return value(in.readByte());
+        }
+
+        private Object value(byte tag) throws IOException {
+            switch (tag) {
+                case NIL:
+                    return null;
+                case FALSE:
+                    return false;
+                case TRUE:
+                    return true;
+                case INTEGER:
+                    return in.readLong();
+                case NUMBER:
+                    return in.readDouble();
+                case STRING:
+                    return string();
+                case REF:
+                    return objects.get(in.readInt());
+                case ENVIRONMENT: {
+                    int id = reserve();
+                    Environment enclosing = (Environment) value();
+                    Environment environment = enclosing == null ? new Environment() : new Environment(enclosing);
+                    objects.set(id, environment);
+                    pending.add(environment);
+                    return environment;
+                }
+                case FUNCTION: {
+                    int id = reserve();
+                    @SuppressWarnings("unchecked")
+                    Map<Expr, Integer> locals = (Map<Expr, Integer>) value();
+
+                    Map<Stmt.Function, List<Resolver.Capture>> captured = programs.get(locals);
+                    Set<Expr.Call> tails = programTailCalls.get(locals);
+
+                    Map<Expr, Integer> enclosing = program;
+                    Map<Stmt.Function, List<Resolver.Capture>> enclosingCaptures = captures;
+                    Set<Expr.Call> enclosingTailCalls = tailCalls;
+                    program = locals;
+                    captures = captured;
+                    tailCalls = tails;
+                    Stmt.Function declaration = (Stmt.Function) stmt();
+                    program = enclosing;
+                    captures = enclosingCaptures;
+                    tailCalls = enclosingTailCalls;
+
+                    Environment closure = (Environment) value();
+                    boolean isInitializer = in.readByte() == TRUE;
+                    // inferred types aren't kept, so its arithmetic stays boxed
+                    LoxFunction function = new LoxFunction(declaration, closure, locals, captured, Map.of(),
+                            tails, isInitializer);
+                    objects.set(id, function);
+                    return function;
+                }
+                case CLASS: {
+                    int id = reserve();
+                    String name = string();
+                    Map<String, LoxFunction> methods = new HashMap<>();
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String method = string();
+                        methods.put(method, (LoxFunction) value());
+                    }
+                    LoxClass klass = new LoxClass(name, methods);
+                    objects.set(id, klass);
+                    return klass;
+                }
+                case INSTANCE: {
+                    int id = reserve();
+                    LoxInstance instance = new LoxInstance((LoxClass) value());
+                    objects.set(id, instance);
+                    pending.add(instance);
+                    return instance;
+                }
+                case PROGRAM: {
+                    Map<Expr, Integer> locals = new HashMap<>();
+                    objects.add(locals);
+                    programs.put(locals, new IdentityHashMap<>());
+                    programTailCalls.put(locals, Collections.newSetFromMap(new IdentityHashMap<>()));
+                    return locals;
+                }
+                case BOX: {
+                    Box box = new Box(null);
+                    objects.add(box);
+                    box.value = value();
+                    return box;
+                }
+                default:
+                    throw new IOException("Unknown value tag " + tag + ".");
+            }
+        }
+
+        private int reserve() {
+            objects.add(null);
+            return objects.size() - 1;
+        }
+
+        private Expr expr() throws IOException {
+            byte tag = in.readByte();
+            switch (tag) {
+                case NIL:
+                    return null;
+                case ASSIGN: {
+                    Token name = token();
+                    return resolved(new Expr.Assign(name, expr()));
+                }
+                case BINARY: {
+                    Expr left = expr();
+                    Token operator = token();
+                    return new Expr.Binary(left, operator, expr());
+                }
+                case CALL: {
+                    Expr callee = expr();
+                    Token paren = token();
+                    List<Expr> arguments = new ArrayList<>();
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        arguments.add(expr());
+                    }
+                    Expr.Call call = new Expr.Call(callee, paren, arguments);
+                    if (in.readByte() == TRUE)
+                        tailCalls.add(call);
+                    return call;
+                }
+                case GET: {
+                    Expr object = expr();
+                    return new Expr.Get(object, token());
+                }
+                case GROUPING:
+                    return new Expr.Grouping(expr());
+                case LITERAL:
+                    return new Expr.Literal(value());
+                case LOGICAL: {
+                    Expr left = expr();
+                    Token operator = token();
+                    return new Expr.Logical(left, operator, expr());
+                }
+                case SET: {
+                    Expr object = expr();
+                    Token name = token();
+                    return new Expr.Set(object, name, expr());
+                }
+                case THIS:
+                    return resolved(new Expr.This(token()));
+                case UNARY: {
+                    Token operator = token();
+                    return new Expr.Unary(operator, expr());
+                }
+                case VARIABLE:
+                    return resolved(new Expr.Variable(token()));
+                default:
+                    throw new IOException("Unknown expression tag " + tag + ".");
+            }
+        }
+
+        private Expr resolved(Expr expr) throws IOException {
+            int depth = in.readInt();
+            if (depth != UNRESOLVED)
+                program.put(expr, depth);
+            return expr;
+        }
+
+        private Stmt stmt() throws IOException {
+            byte tag = in.readByte();
+            switch (tag) {
+                case NIL:
+                    return null;
+                case REF:
+                    return (Stmt.Function) objects.get(in.readInt());
+                case BLOCK:
+                    return new Stmt.Block(statements());
+                case CLASS_STMT: {
+                    Token name = token();
+                    List<Stmt.Function> methods = new ArrayList<>();
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        methods.add((Stmt.Function) stmt());
+                    }
+                    return new Stmt.Class(name, methods);
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expr());
+                case FUNCTION_STMT: {
+                    int id = reserve();
+                    Token name = token();
+                    List<Token> params = new ArrayList<>();
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        params.add(token());
+                    }
+                    Stmt.Function function = new Stmt.Function(name, params, statements());
+                    objects.set(id, function);
+
+                    List<Resolver.Capture> captured = new ArrayList<>();
+                    int captureCount = in.readInt();
+                    for (int i = 0; i < captureCount; i++) {
+                        Resolver.Capture capture = new Resolver.Capture(string(), in.readInt());
+                        capture.mutable = in.readByte() == TRUE;
+                        captured.add(capture);
+                    }
+                    if (!captured.isEmpty())
+                        captures.put(function, captured);
+                    return function;
+                }
+                case IF: {
+                    Expr condition = expr();
+                    Stmt thenBranch = stmt();
+                    return new Stmt.If(condition, thenBranch, stmt());
+                }
+                case PRINT:
+                    return new Stmt.Print(expr());
+                case RETURN: {
+                    Token keyword = token();
+                    return new Stmt.Return(keyword, expr());
+                }
+                case VAR: {
+                    Token name = token();
+                    return new Stmt.Var(name, expr());
+                }
+                case WHILE: {
+                    Expr condition = expr();
+                    return new Stmt.While(condition, stmt());
+                }
+                case CONST: {
+                    Token name = token();
+                    return new Stmt.Const(name, expr());
+                }
+                default:
+                    throw new IOException("Unknown statement tag " + tag + ".");
+            }
+        }
+
+        private List<Stmt> statements() throws IOException {
+            List<Stmt> statements = new ArrayList<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                statements.add(stmt());
+            }
+            return statements;
+        }
+
+        private Token token() throws IOException {
+            TokenType type = TOKEN_TYPES[in.readByte()];
+            String lexeme = string();
+            Object literal = value();
+            return new Token(type, lexeme, literal, in.readInt());
+        }
+
+        private String string() throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -10,6 +10,8 @@ abstract class Stmt {
 
         R visitClassStmt(Class stmt);
 
+        R visitConstStmt(Const stmt);
+
         R visitExpressionStmt(Expression stmt);
 
         R visitFunctionStmt(Function stmt);
@@ -56,6 +58,22 @@ abstract class Stmt {
 
     }
 
+    static class Const extends Stmt {
+        final Token name;
+        final Expr initializer;
+
+        Const(Token name, Expr initializer) {
+            this.name = name;
+            this.initializer = initializer;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitConstStmt(this);
+        }
+
+    }
+
     static class Expression extends Stmt {
         final Expr expression;
 
@@ -0,0 +1,17 @@
+package jlox;
+
+import java.util.List;
+
+// A call in tail position that has been evaluated up to the point of calling.
+// It is returned to the LoxFunction.call() that is finishing instead of being
+// called from inside it, which keeps tail recursion from growing the Java
+// stack.
+final class TailCall {
+    final LoxFunction function;
+    final List<Object> arguments;
+
+    TailCall(LoxFunction function, List<Object> arguments) {
+        this.function = function;
+        this.arguments = arguments;
+    }
+}
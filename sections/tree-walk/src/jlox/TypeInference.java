@@ -0,0 +1,419 @@
+package jlox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Works out which expressions of a resolved program always evaluate to a
+// number, a boolean, a string or nil, so NodeCompiler can leave out the type
+// checks on them and keep numbers unboxed (see Node.Unboxed). A number is
+// known to be an integer, a double, or either (see Numbers); only arithmetic
+// with a double in it is unboxed, since integers must stay exact.
+//
+// Only the locals of the function being analyzed are followed, from their
+// declaration through every assignment, with the type of a local joined
+// wherever control flow meets: after an if, after the right operand of and/or,
+// and at the head of a loop until it stops changing. Everything else is
+// unknown: parameters, globals (any call may change them), fields, results of
+// calls, and locals a closure assigns, since the closure might run in a call.
+// Each function is analyzed on its own, with what it captures unknown.
+//
+// An operator's result type follows from its operator alone when the operator
+// either produces that type or fails: -, *, /, % and unary - give numbers,
+// comparisons and ! give booleans. + gives a number or a string depending on
+// its operands. Arithmetic with a double operand gives a double; on integers
+// it may overflow or divide into a double, so gives either.
+class TypeInference implements Expr.Visitor<TypeInference.Type>, Stmt.Visitor<Void> {
+    enum Type {
+        INTEGER, DOUBLE, NUMBER, BOOLEAN, STRING, NIL, ANY;
+
+        Type join(Type other) {
+            if (this == other)
+                return this;
+            return isNumber() && other.isNumber() ? NUMBER : ANY;
+        }
+
+        boolean isNumber() {
+            return this == INTEGER || this == DOUBLE || this == NUMBER;
+        }
+    }
+
+    private final Map<Expr, Integer> locals;
+    private final Set<String> captured; // locals some closure assigns
+    private final Map<Expr, Type> types;
+    // the types of the locals in each scope of the function, outermost first
+    private List<Map<String, Type>> scopes = new ArrayList<>();
+    // every expression and operator seen, for the stats
+    private int expressions = 0;
+    private int operators = 0;
+
+    private TypeInference(Map<Expr, Integer> locals, Set<String> captured, Map<Expr, Type> types) {
+        this.locals = locals;
+        this.captured = captured;
+        this.types = types;
+    }
+
+    // the known type of every expression whose type is known
+    static Map<Expr, Type> infer(List<Stmt> statements, Map<Expr, Integer> locals,
+            Map<Stmt.Function, List<Resolver.Capture>> captures) {
+        return analyze(statements, locals, captures).types;
+    }
+
+    private static TypeInference analyze(List<Stmt> statements, Map<Expr, Integer> locals,
+            Map<Stmt.Function, List<Resolver.Capture>> captures) {
+        TypeInference inference = new TypeInference(locals, CommonExpressions.captured(captures.values()),
+                new IdentityHashMap<>());
+        inference.walk(statements);
+        return inference;
+    }
+
+    // whether an operator needs no check on its operands, because they're known
+    // to be numbers, and can work in doubles, because one of them is a double
+    static boolean isUnboxed(Map<Expr, Type> types, Expr expr) {
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return unary.operator.type == TokenType.MINUS && types.get(unary.right) == Type.DOUBLE;
+        }
+        if (!(expr instanceof Expr.Binary))
+            return false;
+        Expr.Binary binary = (Expr.Binary) expr;
+        switch (binary.operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case MINUS:
+            case MINUSEQUALS:
+            case PLUS:
+            case PLUSEQUALS:
+            case STAR:
+            case SLASH:
+            case MODULO:
+                Type left = types.getOrDefault(binary.left, Type.ANY);
+                Type right = types.getOrDefault(binary.right, Type.ANY);
+                return left.isNumber() && right.isNumber() && (left == Type.DOUBLE || right == Type.DOUBLE);
+            default:
+                return false;
+        }
+    }
+
+    // how much of the program the analysis covers, for --type-stats
+    static void report(List<Stmt> statements, Map<Expr, Integer> locals,
+            Map<Stmt.Function, List<Resolver.Capture>> captures, PrintStream out) {
+        TypeInference inference = analyze(statements, locals, captures);
+        Map<Type, Integer> counts = new HashMap<>();
+        int unboxed = 0;
+        for (Map.Entry<Expr, Type> entry : inference.types.entrySet()) {
+            counts.merge(entry.getValue(), 1, Integer::sum);
+            if (isUnboxed(inference.types, entry.getKey()))
+                unboxed++;
+        }
+
+        out.println("-- type inference --");
+        out.printf("%10d of %d expressions typed (%s)%n", inference.types.size(), inference.expressions,
+                percent(inference.types.size(), inference.expressions));
+        for (Type type : Type.values()) {
+            if (counts.containsKey(type))
+                out.printf("%10d  %s%n", counts.get(type), type.name().toLowerCase());
+        }
+        out.printf("%10d of %d operators need no type check (%s)%n", unboxed, inference.operators,
+                percent(unboxed, inference.operators));
+    }
+
+    private static String percent(int part, int whole) {
+        return whole == 0 ? "-" : Math.round(100.0 * part / whole) + "%";
+    }
+
+    private void walk(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            walk(statement);
+        }
+    }
+
+    private void walk(Stmt stmt) {
+        if (stmt != null)
+            stmt.accept(this);
+    }
+
+    private Type walk(Expr expr) {
+        expressions++;
+        Type type = expr.accept(this);
+        // a loop is walked until its types settle, so later walks overrule
+        // earlier ones
+        if (type == Type.ANY)
+            types.remove(expr);
+        else
+            types.put(expr, type);
+        return type;
+    }
+
+    // the scope a local of this function was declared in, or null if the
+    // expression isn't one that's followed
+    private Map<String, Type> scope(Expr expr, String name) {
+        Integer depth = locals.get(expr);
+        if (depth == null || depth < 0 || depth >= scopes.size() || captured.contains(name))
+            return null;
+        Map<String, Type> scope = scopes.get(scopes.size() - 1 - depth);
+        return scope.containsKey(name) ? scope : null;
+    }
+
+    private void declare(String name, Type type) {
+        if (!scopes.isEmpty())
+            scopes.get(scopes.size() - 1).put(name, captured.contains(name) ? Type.ANY : type);
+    }
+
+    private List<Map<String, Type>> copy(List<Map<String, Type>> state) {
+        List<Map<String, Type>> copy = new ArrayList<>(state.size());
+        for (Map<String, Type> scope : state) {
+            copy.add(new HashMap<>(scope));
+        }
+        return copy;
+    }
+
+    // the state where control from a and b meets. Both have the same scopes.
+    private static List<Map<String, Type>> join(List<Map<String, Type>> a, List<Map<String, Type>> b) {
+        List<Map<String, Type>> joined = new ArrayList<>(a.size());
+        for (int i = 0; i < a.size(); i++) {
+            Map<String, Type> scope = new HashMap<>(a.get(i));
+            for (Map.Entry<String, Type> entry : b.get(i).entrySet()) {
+                scope.merge(entry.getKey(), entry.getValue(), Type::join);
+            }
+            joined.add(scope);
+        }
+        return joined;
+    }
+
+    private void beginScope() {
+        scopes.add(new HashMap<>());
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    @Override
+    public Type visitAssignExpr(Expr.Assign expr) {
+        Type type = walk(expr.value);
+        Map<String, Type> scope = scope(expr, expr.name.lexeme);
+        if (scope != null)
+            scope.put(expr.name.lexeme, type);
+        return type;
+    }
+
+    @Override
+    public Type visitBinaryExpr(Expr.Binary expr) {
+        operators++;
+        Type left = walk(expr.left);
+        Type right = walk(expr.right);
+        switch (expr.operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                return Type.BOOLEAN;
+            case MINUS:
+            case MINUSEQUALS:
+            case STAR:
+            case SLASH:
+            case MODULO:
+                return arithmetic(left, right);
+            case PLUS:
+            case PLUSEQUALS:
+                // the other operand must match, or + fails
+                if (left.isNumber() || right.isNumber())
+                    return arithmetic(left, right);
+                if (left == Type.STRING || right == Type.STRING)
+                    return Type.STRING;
+                return Type.ANY;
+            default:
+                return Type.NIL;
+        }
+    }
+
+    // the result of arithmetic that succeeds
+    private static Type arithmetic(Type left, Type right) {
+        return left == Type.DOUBLE || right == Type.DOUBLE ? Type.DOUBLE : Type.NUMBER;
+    }
+
+    @Override
+    public Type visitCallExpr(Expr.Call expr) {
+        walk(expr.callee);
+        for (Expr argument : expr.arguments) {
+            walk(argument);
+        }
+        return Type.ANY;
+    }
+
+    @Override
+    public Type visitGetExpr(Expr.Get expr) {
+        walk(expr.object);
+        return Type.ANY;
+    }
+
+    @Override
+    public Type visitGroupingExpr(Expr.Grouping expr) {
+        return walk(expr.expression);
+    }
+
+    @Override
+    public Type visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value instanceof Long)
+            return Type.INTEGER;
+        if (expr.value instanceof Double)
+            return Type.DOUBLE;
+        if (expr.value instanceof Boolean)
+            return Type.BOOLEAN;
+        if (expr.value instanceof String)
+            return Type.STRING;
+        return expr.value == null ? Type.NIL : Type.ANY;
+    }
+
+    @Override
+    public Type visitLogicalExpr(Expr.Logical expr) {
+        Type left = walk(expr.left);
+        List<Map<String, Type>> skipped = copy(scopes);
+        Type right = walk(expr.right);
+        scopes = join(skipped, scopes);
+        return left.join(right);
+    }
+
+    @Override
+    public Type visitSetExpr(Expr.Set expr) {
+        walk(expr.object);
+        return walk(expr.value);
+    }
+
+    @Override
+    public Type visitThisExpr(Expr.This expr) {
+        return Type.ANY;
+    }
+
+    @Override
+    public Type visitUnaryExpr(Expr.Unary expr) {
+        operators++;
+        Type right = walk(expr.right);
+        switch (expr.operator.type) {
+            case MINUS:
+                return right == Type.DOUBLE ? Type.DOUBLE : Type.NUMBER;
+            case BANG:
+                return Type.BOOLEAN;
+            default:
+                return Type.NIL;
+        }
+    }
+
+    @Override
+    public Type visitVariableExpr(Expr.Variable expr) {
+        Map<String, Type> scope = scope(expr, expr.name.lexeme);
+        return scope == null ? Type.ANY : scope.get(expr.name.lexeme);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        walk(stmt.statements);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.name.lexeme, Type.ANY);
+        for (Stmt.Function method : stmt.methods) {
+            function(method);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitConstStmt(Stmt.Const stmt) {
+        declare(stmt.name.lexeme, walk(stmt.initializer));
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name.lexeme, Type.ANY);
+        function(stmt);
+        return null;
+    }
+
+    // a function's body, where nothing outside it is followed
+    private void function(Stmt.Function function) {
+        List<Map<String, Type>> enclosing = scopes;
+        scopes = new ArrayList<>();
+        beginScope();
+        for (Token param : function.params) {
+            declare(param.lexeme, Type.ANY);
+        }
+        walk(function.body);
+        scopes = enclosing;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        walk(stmt.condition);
+        List<Map<String, Type>> otherwise = copy(scopes);
+        walk(stmt.thenBranch);
+        List<Map<String, Type>> then = scopes;
+        scopes = otherwise;
+        walk(stmt.elseBranch);
+        scopes = join(then, scopes);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null)
+            walk(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        declare(stmt.name.lexeme, stmt.initializer == null ? Type.NIL : walk(stmt.initializer));
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        // the types at the head of the loop, from before it and from the end of
+        // every iteration, until another iteration changes nothing
+        List<Map<String, Type>> head = copy(scopes);
+        int expressions = this.expressions;
+        int operators = this.operators;
+        for (;;) {
+            this.expressions = expressions;
+            this.operators = operators;
+            scopes = copy(head);
+            walk(stmt.condition);
+            List<Map<String, Type>> exit = copy(scopes);
+            walk(stmt.body);
+            List<Map<String, Type>> next = join(head, scopes);
+            if (next.equals(head)) {
+                scopes = exit;
+                return null;
+            }
+            head = next;
+        }
+    }
+}
@@ -35,6 +35,7 @@ public class GenerateAst {
         List<String> stmts = Arrays.asList(
                 "Block        : List<Stmt> statements",
                 "Class        : Token name, List<Function> methods",
+                "Const        : Token name, Expr initializer",
                 "Expression   : Expr expression",
                 "Function     : Token name, List<Token> params, List<Stmt> body",
                 "If           : Expr condition, Stmt thenBranch, Stmt elseBranch",